@@ -0,0 +1,87 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheSerializer;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.JsonCacheSerializer;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * CacheClient三种缓存策略在缓存命中时的性能
+ * localCache为false时每次查询前清除本地缓存 测量的是访问Redis加反序列化的开销
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class CacheClientBenchmark {
+    private static final String KEY_PREFIX = "bench:shop:";
+    private static final String LOGICAL_KEY_PREFIX = "bench:shop:logical:";
+    // 不与线上商铺的重建锁冲突
+    private static final String LOCK_KEY_PREFIX = "bench:lock:shop:";
+    private static final int SHOP_COUNT = 1000;
+
+    @Param({"json", "binary"})
+    public String serializer;
+
+    @Param({"false", "true"})
+    public boolean localCache;
+
+    private LettuceConnectionFactory factory;
+    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
+
+    @Setup
+    public void setup() {
+        factory = RedisSupport.connectionFactory();
+        stringRedisTemplate = RedisSupport.template(factory);
+        CacheSerializer cacheSerializer = "json".equals(serializer) ? new JsonCacheSerializer() : new BinaryCacheSerializer(1024);
+        cacheClient = new CacheClient(stringRedisTemplate, cacheSerializer);
+        for (long id = 1; id <= SHOP_COUNT; id++) {
+            cacheClient.set(KEY_PREFIX + id, Shops.shop(id), 1L, TimeUnit.HOURS);
+            cacheClient.setWithLogicalExpire(LOGICAL_KEY_PREFIX + id, Shops.shop(id), 1L, TimeUnit.HOURS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (long id = 1; id <= SHOP_COUNT; id++) {
+            stringRedisTemplate.delete(KEY_PREFIX + id);
+            stringRedisTemplate.delete(LOGICAL_KEY_PREFIX + id);
+        }
+        factory.destroy();
+    }
+
+    private long nextId(String keyPrefix) {
+        long id = ThreadLocalRandom.current().nextLong(1, SHOP_COUNT + 1);
+        if (!localCache) {
+            cacheClient.evictLocal(keyPrefix + id);
+        }
+        return id;
+    }
+
+    @Benchmark
+    public Shop passThrough() {
+        return cacheClient.queryWithPassThrough(KEY_PREFIX, nextId(KEY_PREFIX), Shop.class, Shops::shop, 1L, TimeUnit.HOURS);
+    }
+
+    @Benchmark
+    public Shop mutex() {
+        return cacheClient.queryWithMutex(KEY_PREFIX, nextId(KEY_PREFIX), Shop.class, Shops::shop, 1L, TimeUnit.HOURS, LOCK_KEY_PREFIX);
+    }
+
+    @Benchmark
+    public Shop logicalExpire() {
+        return cacheClient.queryWithLogicalExpire(LOGICAL_KEY_PREFIX, nextId(LOGICAL_KEY_PREFIX), Shop.class, Shops::shop, 1L, TimeUnit.HOURS, LOCK_KEY_PREFIX);
+    }
+}
@@ -0,0 +1,46 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 全局唯一ID生成的吞吐量和延迟
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class RedisIdWorkerBenchmark {
+
+    @Param({"incr", "segment", "snowflake"})
+    public String mode;
+
+    private LettuceConnectionFactory factory;
+    private RedisIdWorker redisIdWorker;
+
+    @Setup
+    public void setup() {
+        factory = RedisSupport.connectionFactory();
+        redisIdWorker = new RedisIdWorker();
+        RedisSupport.inject(redisIdWorker, "stringRedisTemplate", RedisSupport.template(factory));
+        RedisSupport.inject(redisIdWorker, "mode", mode);
+        redisIdWorker.init();
+    }
+
+    @TearDown
+    public void tearDown() {
+        redisIdWorker.destroy();
+        factory.destroy();
+    }
+
+    @Benchmark
+    public Long nextId() {
+        return redisIdWorker.nextId("bench");
+    }
+}
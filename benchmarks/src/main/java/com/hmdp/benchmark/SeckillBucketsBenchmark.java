@@ -0,0 +1,81 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.utils.SeckillStockBuckets;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 库存分桶后的秒杀吞吐量和延迟 通过SeckillStockBuckets调用 与线上的路由方式相同
+ * homeStock为true时每个分桶都有足够的库存 测量的是只访问用户所在分桶的路径
+ * 为false时只有0号分桶有库存 其他分桶的用户都要经过扣减其他分桶(seckillSteal.lua)和记录下单用户(seckillClaim.lua)
+ * 单机Redis上测量的是分桶本身的开销 不能体现Redis集群中分散到多个分片的效果
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class SeckillBucketsBenchmark {
+    // 不与真实的优惠券ID冲突
+    private static final Long VOUCHER_ID = 900000002L;
+
+    @Param({"1", "4", "16"})
+    public int buckets;
+
+    @Param({"true", "false"})
+    public boolean homeStock;
+
+    private final AtomicLong userId = new AtomicLong();
+    private LettuceConnectionFactory factory;
+    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockBuckets seckillStockBuckets;
+
+    @Setup
+    public void setup() {
+        factory = RedisSupport.connectionFactory();
+        stringRedisTemplate = RedisSupport.template(factory);
+        seckillStockBuckets = new SeckillStockBuckets();
+        RedisSupport.inject(seckillStockBuckets, "stringRedisTemplate", stringRedisTemplate);
+        cleanUp();
+        seckillStockBuckets.init(VOUCHER_ID, Integer.MAX_VALUE, buckets);
+        if (!homeStock && buckets > 1) {
+            stringRedisTemplate.opsForValue().set(stockKey(0), String.valueOf(Integer.MAX_VALUE));
+            for (int i = 1; i < buckets; i++) {
+                stringRedisTemplate.opsForValue().set(stockKey(i), "0");
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cleanUp();
+        factory.destroy();
+    }
+
+    private void cleanUp() {
+        stringRedisTemplate.delete(SECKILL_STOCK_KEY + VOUCHER_ID);
+        stringRedisTemplate.delete(SECKILL_ORDER_KEY + VOUCHER_ID);
+        stringRedisTemplate.delete(SECKILL_BUCKETS_KEY + VOUCHER_ID);
+        for (int i = 0; i < buckets; i++) {
+            stringRedisTemplate.delete(stockKey(i));
+            stringRedisTemplate.delete(SECKILL_ORDER_KEY + "{" + VOUCHER_ID + ":" + i + "}");
+        }
+    }
+
+    private static String stockKey(int bucket) {
+        return SECKILL_STOCK_KEY + "{" + VOUCHER_ID + ":" + bucket + "}";
+    }
+
+    @Benchmark
+    public int seckill() {
+        return seckillStockBuckets.tryAcquire(VOUCHER_ID, userId.incrementAndGet());
+    }
+}
@@ -0,0 +1,79 @@
+package com.hmdp.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀Lua脚本的吞吐量和延迟 每次调用使用不同的用户ID 库存足够大 测量的是下单成功的路径
+ * 脚本中的key和订单消息队列替换为bench:前缀 不会写入线上的库存、下单用户和stream.orders 结束时删除
+ * 这里只测量不分桶的库存 分桶的库存见SeckillBucketsBenchmark
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class SeckillScriptBenchmark {
+    // 不与真实的优惠券ID冲突
+    private static final String VOUCHER_ID = "900000001";
+    private static final String STOCK_KEY = "bench:seckill:stock:" + VOUCHER_ID;
+    private static final String ORDER_KEY = "bench:seckill:order:" + VOUCHER_ID;
+    private static final String ORDER_STREAM = "bench:stream.orders";
+
+    @Param({"seckill.lua", "seckillWithMQ.lua"})
+    public String script;
+
+    private final AtomicLong userId = new AtomicLong();
+    private final AtomicLong orderId = new AtomicLong();
+    private LettuceConnectionFactory factory;
+    private StringRedisTemplate stringRedisTemplate;
+    private DefaultRedisScript<Long> redisScript;
+
+    @Setup
+    public void setup() throws IOException {
+        factory = RedisSupport.connectionFactory();
+        stringRedisTemplate = RedisSupport.template(factory);
+        String text = StreamUtils.copyToString(new ClassPathResource(script).getInputStream(), StandardCharsets.UTF_8)
+                .replace("\"seckill:stock:\"", "\"bench:seckill:stock:\"")
+                .replace("\"seckill:order:\"", "\"bench:seckill:order:\"")
+                .replace("'stream.orders'", "'" + ORDER_STREAM + "'");
+        redisScript = new DefaultRedisScript<>(text, Long.class);
+        cleanUp();
+        stringRedisTemplate.opsForValue().set(STOCK_KEY, String.valueOf(Integer.MAX_VALUE));
+    }
+
+    @TearDown
+    public void tearDown() {
+        cleanUp();
+        factory.destroy();
+    }
+
+    private void cleanUp() {
+        stringRedisTemplate.delete(STOCK_KEY);
+        stringRedisTemplate.delete(ORDER_KEY);
+        stringRedisTemplate.delete(ORDER_STREAM);
+    }
+
+    @Benchmark
+    public Long seckill() {
+        return stringRedisTemplate.execute(
+                redisScript,
+                Collections.emptyList(),
+                VOUCHER_ID,
+                String.valueOf(userId.incrementAndGet()),
+                String.valueOf(orderId.incrementAndGet())
+        );
+    }
+}
@@ -0,0 +1,45 @@
+package com.hmdp.benchmark;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheSerializer;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.JsonCacheSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shop对象JSON与二进制序列化的对比 不依赖Redis
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializerBenchmark {
+
+    @Param({"json", "binary"})
+    public String serializer;
+
+    private CacheSerializer cacheSerializer;
+    private Shop shop;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        cacheSerializer = "json".equals(serializer) ? new JsonCacheSerializer() : new BinaryCacheSerializer(1024);
+        shop = Shops.shop(1L);
+        bytes = cacheSerializer.serialize(shop);
+    }
+
+    @Benchmark
+    public Shop deserialize() {
+        return cacheSerializer.deserialize(bytes, Shop.class);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return cacheSerializer.serialize(shop);
+    }
+}
@@ -4,10 +4,12 @@ import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 
 @EnableAspectJAutoProxy(exposeProxy = true) // 允许通过AopContext.currentProxy()方法获取当前对象的代理类对象
 @MapperScan("com.hmdp.mapper")
+@EnableScheduling // 开启定时任务 用于定期重建布隆过滤器等后台任务
 @SpringBootApplication
 public class HmDianPingApplication {
 
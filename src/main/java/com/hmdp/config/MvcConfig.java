@@ -2,8 +2,11 @@ package com.hmdp.config;
 
 import com.hmdp.interceptor.LoginInterceptor;
 import com.hmdp.interceptor.RedisRefreshInterceptor;
+import com.hmdp.interceptor.SeckillInterceptor;
+import com.hmdp.service.IVoucherOrderService;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.SignedLoginTokens;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
@@ -12,7 +15,12 @@ import javax.annotation.Resource;
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginSessionCache loginSessionCache;
+    @Resource
+    private SignedLoginTokens signedLoginTokens;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         // 登录拦截器
@@ -27,10 +35,14 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/login"
                 ).order(1);
         // 默认拦截器拦截所有请求 使用order控制拦截器的先后顺序
-        registry.addInterceptor(new RedisRefreshInterceptor(stringRedisTemplate))
+        registry.addInterceptor(new RedisRefreshInterceptor(loginSessionCache, signedLoginTokens))
                 .excludePathPatterns(
                         "/user/code",
                         "/user/login"
                 ).order(0);
+        // 秒杀前置检查拦截器 在刷新登录状态之前执行
+        registry.addInterceptor(new SeckillInterceptor(voucherOrderService))
+                .addPathPatterns("/voucher-order/seckill/**")
+                .order(-1);
     }
 }
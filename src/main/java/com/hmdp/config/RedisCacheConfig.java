@@ -0,0 +1,93 @@
+package com.hmdp.config;
+
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.BinaryCacheSerializer;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.JsonCacheSerializer;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.SignedLoginTokens;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存相关配置
+ */
+@Configuration
+public class RedisCacheConfig {
+    /**
+     * 缓存对象的序列化方式 hmdp.cache.serializer为json时使用JSON 默认使用二进制
+     */
+    @Bean
+    public CacheSerializer cacheSerializer(@Value("${hmdp.cache.serializer:binary}") String serializer,
+                                           @Value("${hmdp.cache.compress-threshold:1024}") int compressThreshold) {
+        if ("json".equalsIgnoreCase(serializer)) {
+            return new JsonCacheSerializer();
+        }
+        return new BinaryCacheSerializer(compressThreshold);
+    }
+
+    /**
+     * 订阅缓存失效频道 收到消息后清除本节点的本地缓存
+     * 订阅优惠券卖完和补货频道 更新本节点的卖完标记
+     * 订阅新增秒杀券频道 更新本节点的秒杀时间
+     * 订阅登录信息失效频道 清除本节点缓存的登录用户
+     * 订阅token撤销频道 更新本节点的撤销布隆过滤器
+     * 订阅商铺坐标变化频道 更新本节点的空间索引
+     * 订阅商铺名称地址变化频道 更新本节点的搜索索引
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory, CacheClient cacheClient,
+                                                                       IVoucherOrderService voucherOrderService,
+                                                                       ISeckillVoucherService seckillVoucherService,
+                                                                       LoginSessionCache loginSessionCache,
+                                                                       SignedLoginTokens signedLoginTokens,
+                                                                       IShopService shopService) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 消息内容就是被删除的缓存key
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL)
+        );
+        container.addMessageListener(
+                (message, pattern) -> voucherOrderService.applySoldOut(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)), true),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL)
+        );
+        container.addMessageListener(
+                (message, pattern) -> voucherOrderService.applySoldOut(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)), false),
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL)
+        );
+        container.addMessageListener(
+                (message, pattern) -> seckillVoucherService.applyVoucherMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_VOUCHER_CHANNEL)
+        );
+        container.addMessageListener(
+                (message, pattern) -> loginSessionCache.evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(LOGIN_INVALIDATE_CHANNEL)
+        );
+        container.addMessageListener(
+                (message, pattern) -> signedLoginTokens.applyRevoked(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(LOGIN_REVOKED_CHANNEL)
+        );
+        container.addMessageListener(
+                (message, pattern) -> shopService.applyShopGeoMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SHOP_GEO_CHANNEL)
+        );
+        container.addMessageListener(
+                (message, pattern) -> shopService.applyShopSearchMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SHOP_SEARCH_CHANNEL)
+        );
+        return container;
+    }
+}
@@ -1,12 +1,9 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -45,10 +42,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库 返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -63,6 +58,17 @@ public class ShopController {
         return shopService.update(shop);
     }
 
+    /**
+     * 删除商铺信息
+     *
+     * @param id 商铺id
+     * @return 无
+     */
+    @DeleteMapping("/{id}")
+    public Result deleteShop(@PathVariable("id") Long id) {
+        return shopService.deleteShop(id);
+    }
+
     /**
      * 根据商铺类型分页查询商铺信息
      *
@@ -80,6 +86,23 @@ public class ShopController {
         return shopService.queryShopByType(typeId, current, x, y);
     }
 
+    /**
+     * 按距离游标分页查询附近的商铺
+     *
+     * @param typeId 商铺类型 查询第一页时必须传入
+     * @param cursor 上一页返回的游标 查询第一页时为空
+     * @return 商铺列表和下一页的游标
+     */
+    @GetMapping("/of/nearby")
+    public Result queryNearbyShops(
+            @RequestParam(value = "typeId", required = false) Integer typeId,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "cursor", required = false) String cursor
+    ) {
+        return shopService.queryNearbyShops(typeId, x, y, cursor);
+    }
+
     /**
      * 根据商铺名称关键字分页查询商铺信息
      *
@@ -92,11 +115,17 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByName(name, current);
+    }
+
+    /**
+     * 商铺名称的前缀补全
+     *
+     * @param prefix 用户已经输入的内容
+     * @return 热度最高的商铺名称
+     */
+    @GetMapping("/suggest")
+    public Result suggest(@RequestParam(value = "prefix", required = false) String prefix) {
+        return shopService.suggest(prefix);
     }
 }
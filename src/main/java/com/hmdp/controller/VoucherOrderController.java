@@ -3,6 +3,9 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStreamRecovery;
+import com.hmdp.utils.SeckillAdmission;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -23,9 +26,30 @@ import javax.annotation.Resource;
 public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private OrderStreamRecovery orderStreamRecovery;
+    @Resource
+    private SeckillAdmission seckillAdmission;
 
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
-        return voucherOrderService.seckillVoucherWithLock(voucherId);
+        // 拿到令牌的请求才会执行秒杀 没有令牌时直接拒绝或者排队
+        return seckillAdmission.submit(voucherId, () -> voucherOrderService.seckillVoucherWithLock(voucherId));
+    }
+
+    /**
+     * 查询排队结果
+     */
+    @GetMapping("ticket/{ticket}")
+    public Result queryTicket(@PathVariable("ticket") String ticket) {
+        return seckillAdmission.queryTicket(ticket);
+    }
+
+    /**
+     * 查询订单消息队列的积压情况
+     */
+    @GetMapping("stream/metrics")
+    public Result streamMetrics() {
+        return Result.ok(orderStreamRecovery.metrics());
     }
 }
@@ -0,0 +1,12 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class NearbyShopResult {
+    private List<?> list;
+    // 查询下一页时传入的游标 为空表示没有更多数据
+    private String cursor;
+}
@@ -0,0 +1,26 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 秒杀订单消息队列的积压情况
+ */
+@Data
+public class OrderStreamMetrics {
+    // 消息队列中的消息总数 XLEN
+    private Long streamLength;
+    // 已经投递但还没有确认的消息数
+    private Long pendingCount;
+    // 消费者组中的消费者数量
+    private Long consumerCount;
+    // 最早一条未确认消息距离上次投递的时间(毫秒)
+    private Long oldestPendingIdle;
+    // 最早一条还没有投递的消息已经等待的时间(毫秒) 没有积压时为0
+    private Long deliveryLag;
+    // 恢复线程重新写入数据库的消息数
+    private Long recoveredCount;
+    // 转入死信队列的消息数
+    private Long deadLetterCount;
+    // 死信队列的长度
+    private Long deadLetterLength;
+}
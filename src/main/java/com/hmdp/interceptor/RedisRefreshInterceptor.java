@@ -1,26 +1,24 @@
 package com.hmdp.interceptor;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.SignedLoginTokens;
 import com.hmdp.utils.UserHolder;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
-import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
-import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
 
 public class RedisRefreshInterceptor implements HandlerInterceptor {
 
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginSessionCache loginSessionCache;
+
+    private SignedLoginTokens signedLoginTokens;
 
-    public RedisRefreshInterceptor(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    public RedisRefreshInterceptor(LoginSessionCache loginSessionCache, SignedLoginTokens signedLoginTokens) {
+        this.loginSessionCache = loginSessionCache;
+        this.signedLoginTokens = signedLoginTokens;
     }
 
     @Override
@@ -34,18 +32,16 @@ public class RedisRefreshInterceptor implements HandlerInterceptor {
         }
         //2.获取session中的用户
         // Object user = session.getAttribute("user");
-        // TODO 从redis中根据Token获取用户信息
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(LOGIN_USER_KEY + token);
+        // TODO 根据Token获取用户信息
+        // 无状态模式下本地校验签名 否则先查本地缓存再查Redis 有效期的续期也在这里完成
+        UserDTO user = signedLoginTokens.isEnabled() ? signedLoginTokens.verify(token) : loginSessionCache.get(token);
         //3. 判断用户是否存在
-        if (userMap.isEmpty()) {
+        if (user == null) {
             //4. 不存在，拦截
             return true;
         }
-        UserDTO user = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
         //5. 存在 保存用户信息到ThreadLocal
         UserHolder.saveUser(user);
-        // 6. 设置过期时间
-        stringRedisTemplate.expire(LOGIN_USER_KEY + token, LOGIN_USER_TTL, TimeUnit.SECONDS);
 
         return true;
     }
@@ -0,0 +1,43 @@
+package com.hmdp.interceptor;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 在所有拦截器之前检查秒杀请求 只读取本地内存
+ * 不存在、不在秒杀时间内或者已经卖完的优惠券直接返回 不再查询Redis中的登录用户
+ */
+public class SeckillInterceptor implements HandlerInterceptor {
+
+    private IVoucherOrderService voucherOrderService;
+
+    public SeckillInterceptor(IVoucherOrderService voucherOrderService) {
+        this.voucherOrderService = voucherOrderService;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 1.从请求路径 /voucher-order/seckill/{id} 中获取优惠券ID
+        String uri = request.getRequestURI();
+        Long voucherId;
+        try {
+            voucherId = Long.valueOf(uri.substring(uri.lastIndexOf('/') + 1));
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        // 2.检查通过 放行
+        String error = voucherOrderService.checkSeckill(voucherId);
+        if (error == null) {
+            return true;
+        }
+        // 3.不能秒杀 直接返回
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail(error)));
+        return false;
+    }
+}
@@ -13,4 +13,17 @@ import com.hmdp.entity.SeckillVoucher;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    // checkTime的返回值
+    int SECKILL_IN_TIME = 0;
+    int SECKILL_UNKNOWN = 1;
+    int SECKILL_NOT_BEGIN = 2;
+    int SECKILL_ENDED = 3;
+
+    int checkTime(Long voucherId);
+
+    void cacheVoucher(SeckillVoucher seckillVoucher);
+
+    void applyVoucherMessage(String message);
+
+    void refreshVoucherCache();
 }
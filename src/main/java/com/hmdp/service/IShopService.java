@@ -17,7 +17,31 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
+    Result deleteShop(Long id);
+
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Result queryNearbyShops(Integer typeId, Double x, Double y, String cursor);
+
+    /**
+     * 根据频道消息更新本节点的空间索引
+     *
+     * @param message 商铺ID:类型ID:经度:纬度 只有商铺ID时表示删除
+     */
+    void applyShopGeoMessage(String message);
+
+    Result queryShopByName(String name, Integer current);
+
+    Result suggest(String prefix);
+
+    /**
+     * 根据频道消息更新本节点的搜索索引
+     *
+     * @param message 商铺名称、地址、评分和销量的JSON 只有商铺ID时表示删除
+     */
+    void applyShopSearchMessage(String message);
 }
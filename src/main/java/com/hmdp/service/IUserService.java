@@ -3,9 +3,12 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -21,7 +24,11 @@ public interface IUserService extends IService<User> {
 
     Result login(LoginFormDTO loginForm);
 
+    Result logout(String token);
+
     Result sendCode(String phone, HttpSession session);
 
     Result sign();
+
+    Map<Long, UserDTO> queryUserDTOByIds(Collection<Long> ids);
 }
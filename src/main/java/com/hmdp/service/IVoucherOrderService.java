@@ -5,6 +5,8 @@ import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -25,4 +27,17 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     void saleVoucher(VoucherOrder order);
 
     Result seckillVoucherWithMQ(Long voucherId);
+
+    @Transactional
+    void saveOrderBatch(List<VoucherOrder> orders);
+
+    String checkSeckill(Long voucherId);
+
+    boolean isSoldOut(Long voucherId);
+
+    void markSoldOut(Long voucherId);
+
+    void clearSoldOut(Long voucherId);
+
+    void applySoldOut(Long voucherId, boolean soldOut);
 }
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -8,27 +7,27 @@ import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
-import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.FeedFanout;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKE_KEY;
 import static com.hmdp.utils.RedisConstants.FEED_MESSAGEBOX_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_OUTBOX_KEY;
 
 /**
  * <p>
@@ -40,6 +39,8 @@ import static com.hmdp.utils.RedisConstants.FEED_MESSAGEBOX_KEY;
  */
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
+    // 滚动分页查询关注博文时每页的条数
+    private static final int FEED_PAGE_SIZE = 3;
 
     @Resource
     private IUserService userService;
@@ -48,7 +49,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    IFollowService followService;
+    private FeedFanout feedFanout;
 
     @Override
     public Result queryBlogById(Integer id) {
@@ -56,8 +57,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (blog == null) {
             return Result.fail("笔记不存在");
         }
-        this.queryBlogUser(blog);
-        this.isBlogLiked(blog);
+        this.fillBlogs(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
@@ -75,11 +75,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach((blog) -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 批量查询作者和点赞信息
+        this.fillBlogs(records);
         return Result.ok(records);
     }
 
@@ -131,24 +128,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (userSet == null || userSet.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
-        // TODO 根据用户id查询用户
-        List<UserDTO> top5 = new ArrayList<>();
-        Long userId = null;
-        User user = null;
-        UserDTO dto = null;
-        for (String s : userSet) {
-            userId = Long.valueOf(s);
-            user = userService.getById(userId);
-            dto = new UserDTO();
-            BeanUtil.copyProperties(user, dto);
-            top5.add(dto);
-        }
+        // TODO 根据用户id批量查询用户 结果保持点赞的先后顺序
+        List<Long> userIds = userSet.stream().map(Long::valueOf).collect(Collectors.toList());
+        List<UserDTO> top5 = new ArrayList<>(userService.queryUserDTOByIds(userIds).values());
         // TODO 封装用户DTO返回
         return Result.ok(top5);
     }
 
     /**
-     * 保存笔记到数据库 同时将笔记发送到所有粉丝的收件箱中
+     * 保存笔记到数据库 提交后在后台将笔记推送到所有粉丝的收件箱中
      * @param blog
      * @return
      */
@@ -161,15 +149,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 保存探店博文
         boolean isSuccess = this.save(blog);
         if (isSuccess) {
-            // 如果成功 则将博文ID推送到当前用户粉丝的收件箱中
-            // 获取当前用户的所有粉丝
-            List<Follow> follows = followService.query().eq("user_id", user.getId()).list();
-            long time = System.currentTimeMillis();
-            // 将消息推送到粉丝收件箱
-            for (Follow follow : follows) {
-                stringRedisTemplate.opsForZSet().add(FEED_MESSAGEBOX_KEY + follow.getFollowUserId(), blog.getId().toString(), time);
-            }
-
+            // 如果成功 则在事务提交后将博文ID推送到当前用户粉丝的收件箱中
+            feedFanout.publish(blog.getId(), user.getId(), System.currentTimeMillis());
         }
         // 返回id
         return Result.ok(blog.getId());
@@ -177,6 +158,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     /**
      * 滚动分页查询关注的人发送的博文
+     * 普通作者的博文在自己的收件箱中 大V的博文在大V的发件箱中 读取时把这些有序集合按时间戳归并
      * @param max 滚动分页查询起始的时间戳
      * @param offset 已经查询的结果当中时间戳最小值相同的个数
      * @return
@@ -185,20 +167,32 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogOfFollow(Long max, Integer offset) {
         // TODO 获取当前用户 只有登录才能进入到个人主页查看关注博文 所以这里一定登陆了
         Long userId = UserHolder.getUser().getId();
-        String key = FEED_MESSAGEBOX_KEY + userId;
-        // TODO 获取当前用户的信箱    ZREVRANGEBYSCORE key名称 最大分数 最小分数 偏移量 取元素的个数
-        // 0是最小值，也就是发布最早的动态，max记录的是上一次分页查询时查询到的最后的一条动态
-        // 因此下面的redis命令实际上的意思就是，从max开始往后查(查询比max时间戳更早的博文)，查询范围是(0, max)
-        // (0, max) 表示的就是还没有查询到的博文,
+        // TODO 需要归并的来源：自己的收件箱 + 关注的大V的发件箱
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_MESSAGEBOX_KEY + userId);
+        for (String authorId : feedFanout.bigAuthorsFollowedBy(userId)) {
+            keys.add(FEED_OUTBOX_KEY + authorId);
+        }
+        // TODO 从每个来源中取出时间戳不超过max的前 offset + pageSize 条 一次pipeline完成
+        // 归并结果的前 offset + pageSize 条一定都在这些数据中
         // offset 是在max的基础上向后再跳过几条记录，主要的目的是防止有多个时间戳一样的记录，假设有3个时间戳为1的，而上一次查询到第一个时间戳为1的
-        // 那么如果不加offset的话，那么这几条就露了，
-        // 最后一个参数3就是pageSize，一次取三条记录
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet().reverseRangeByScoreWithScores(key, 0, max, offset, 3);
-        // TODO 判断是否信箱为空
-        if (typedTuples == null || typedTuples.isEmpty()) {
+        // 那么如果不加offset的话，那么这几条就露了
+        int limit = offset + FEED_PAGE_SIZE;
+        RedisZSetCommands.Range range = RedisZSetCommands.Range.range().gte(0).lte(max);
+        RedisZSetCommands.Limit count = RedisZSetCommands.Limit.limit().count(limit);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zRevRangeByScoreWithScores(key.getBytes(StandardCharsets.UTF_8), range, count);
+            }
+            return null;
+        });
+        // TODO k路归并 取出合并后的前 offset + pageSize 条并跳过已经查询过的offset条
+        List<ZSetOperations.TypedTuple<String>> merged = mergeFeeds(results, limit);
+        if (merged.size() <= offset) {
             return Result.ok();
         }
-        // TODO 如果不为空 则解析信箱数据 并计算出下一次的max和offset
+        List<ZSetOperations.TypedTuple<String>> typedTuples = merged.subList(offset, merged.size());
+        // TODO 解析数据 并计算出下一次的max和offset
         List<Long> blogIdList = new ArrayList<>(typedTuples.size());
         Long minTimeStamp = 0L;
         int os = 1; // 记录offset
@@ -214,14 +208,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
+        // 这一页的时间戳全都等于max时 下一次还要跳过之前已经查询过的记录
+        if (minTimeStamp.equals(max)) {
+            os += offset;
+        }
         // TODO 根据博文ID查询博文 和相关的用户信息和点赞信息
         String idsStr = StrUtil.join(",", blogIdList);
         List<Blog> blogList = super.query().in("id", blogIdList).last("order by field(id, " + idsStr + ")").list();
-        // 查询作者和点赞信息
-        for (Blog blog : blogList) {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        }
+        // 批量查询作者和点赞信息
+        this.fillBlogs(blogList);
 
         // TODO 封装返回对象
         ScrollResult r = new ScrollResult();
@@ -232,31 +227,83 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(r);
     }
 
-
     /**
-     * 查找笔记作者
+     * 按时间戳倒序归并多个有序的信箱 时间戳相同时按博文ID的字典序倒序 与Redis中ZREVRANGEBYSCORE的顺序一致
+     * 保证同样的数据每次归并的顺序相同 offset才有意义
      *
-     * @param blog
+     * @param results 每个信箱中按倒序排列的数据
+     * @param limit   最多取出的条数
+     * @return
      */
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    @SuppressWarnings("unchecked")
+    private List<ZSetOperations.TypedTuple<String>> mergeFeeds(List<Object> results, int limit) {
+        List<List<ZSetOperations.TypedTuple<String>>> feeds = new ArrayList<>(results.size());
+        for (Object result : results) {
+            if (result instanceof Collection && !((Collection<?>) result).isEmpty()) {
+                feeds.add(new ArrayList<>((Collection<ZSetOperations.TypedTuple<String>>) result));
+            }
+        }
+        // 堆中保存 {信箱下标, 信箱中的位置}
+        Comparator<ZSetOperations.TypedTuple<String>> order = Comparator
+                .comparing((ZSetOperations.TypedTuple<String> t) -> t.getScore()).reversed()
+                .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+        PriorityQueue<int[]> heap = new PriorityQueue<>(Math.max(feeds.size(), 1),
+                (x, y) -> order.compare(feeds.get(x[0]).get(x[1]), feeds.get(y[0]).get(y[1])));
+        for (int i = 0; i < feeds.size(); i++) {
+            heap.add(new int[]{i, 0});
+        }
+        List<ZSetOperations.TypedTuple<String>> merged = new ArrayList<>(limit);
+        Set<String> seen = new HashSet<>();
+        while (!heap.isEmpty() && merged.size() < limit) {
+            int[] head = heap.poll();
+            List<ZSetOperations.TypedTuple<String>> feed = feeds.get(head[0]);
+            ZSetOperations.TypedTuple<String> tuple = feed.get(head[1]);
+            // 同一篇博文可能同时在收件箱和发件箱中
+            if (seen.add(tuple.getValue())) {
+                merged.add(tuple);
+            }
+            if (++head[1] < feed.size()) {
+                heap.add(head);
+            }
+        }
+        return merged;
     }
 
+
     /**
-     * 判断当前用户是否点赞
+     * 批量填充笔记的作者和当前用户是否点赞
+     * 作者通过一次批量查询获取 点赞状态通过一次pipeline查询 避免每篇笔记都访问一次数据库和Redis
      *
-     * @param blog
+     * @param blogs
      */
-    private void isBlogLiked(Blog blog) {
+    private void fillBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        // TODO 批量查询作者
+        Set<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> userMap = userService.queryUserDTOByIds(userIds);
+        for (Blog blog : blogs) {
+            UserDTO author = userMap.get(blog.getUserId());
+            if (author != null) {
+                blog.setName(author.getNickName());
+                blog.setIcon(author.getIcon());
+            }
+        }
+        // TODO 一次pipeline查询当前用户是否点过赞 用户没有登录时不查询
         UserDTO user = UserHolder.getUser();
         if (user == null) {
             return;
         }
-        // 2.查询用户是否已经点过赞了
-        Double score = stringRedisTemplate.opsForZSet().score(BLOG_LIKE_KEY + blog.getId(), user.getId().toString());
-        blog.setLike(score != null);
+        byte[] member = user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                connection.zScore((BLOG_LIKE_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8), member);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setLike(scores.get(i) != null);
+        }
     }
 }
@@ -1,12 +1,10 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
@@ -19,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.FOLLOW_LIST_KEY;
 
@@ -97,17 +96,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         if (commonSet.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
-        List<UserDTO> commonFollow = new ArrayList<>();
-        Long userId = null;
-        User u = null;
-        UserDTO dto = null;
-        for (String s : commonSet) {
-            userId = Long.valueOf(s);
-            u = userService.getById(userId);
-            dto = new UserDTO();
-            BeanUtil.copyProperties(u, dto);
-            commonFollow.add(dto);
-        }
+        // 批量查询共同关注的用户信息
+        List<Long> ids = commonSet.stream().map(Long::valueOf).collect(Collectors.toList());
+        List<UserDTO> commonFollow = new ArrayList<>(userService.queryUserDTOByIds(ids).values());
         return Result.ok(commonFollow);
     }
 }
@@ -4,17 +4,157 @@ import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_CHANNEL;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
+ * 在内存中保存还没有结束的秒杀券的开始和结束时间 秒杀请求不需要查询数据库就可以判断时间
+ * 新增秒杀券时写入本地并通过Redis频道通知其他节点 定期从数据库全量刷新
  * </p>
  *
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.voucher-refresh-interval:60000}")
+    private long refreshInterval = 60000L;
+
+    // 还没有结束的秒杀券
+    private final Map<Long, VoucherTime> voucherTimes = new ConcurrentHashMap<>();
+
+    /**
+     * 启动时加载 保证开始接收请求时已经有数据
+     */
+    @PostConstruct
+    private void init() {
+        refreshVoucherCache();
+    }
+
+    /**
+     * 判断当前时间是否在秒杀时间内 只读取内存
+     *
+     * @param voucherId
+     * @return SECKILL_IN_TIME SECKILL_UNKNOWN SECKILL_NOT_BEGIN SECKILL_ENDED
+     */
+    @Override
+    public int checkTime(Long voucherId) {
+        VoucherTime time = voucherTimes.get(voucherId);
+        if (time == null) {
+            return SECKILL_UNKNOWN;
+        }
+        long now = System.currentTimeMillis();
+        if (now < time.begin) {
+            return SECKILL_NOT_BEGIN;
+        }
+        if (now >= time.end) {
+            return SECKILL_ENDED;
+        }
+        return SECKILL_IN_TIME;
+    }
+
+    /**
+     * 新增秒杀券的事务提交后写入本地 并通知其他节点
+     * 消息中直接带上时间 其他节点不需要查询数据库
+     *
+     * @param seckillVoucher
+     */
+    @Override
+    public void cacheVoucher(SeckillVoucher seckillVoucher) {
+        VoucherTime time = VoucherTime.of(seckillVoucher).received(System.currentTimeMillis());
+        voucherTimes.put(seckillVoucher.getVoucherId(), time);
+        stringRedisTemplate.convertAndSend(SECKILL_VOUCHER_CHANNEL,
+                seckillVoucher.getVoucherId() + ":" + time.begin + ":" + time.end);
+    }
+
+    /**
+     * 收到其他节点的通知 消息格式为 优惠券ID:开始时间:结束时间
+     *
+     * @param message
+     */
+    @Override
+    public void applyVoucherMessage(String message) {
+        String[] parts = message.split(":");
+        voucherTimes.put(Long.valueOf(parts[0]),
+                new VoucherTime(Long.parseLong(parts[1]), Long.parseLong(parts[2]), System.currentTimeMillis()));
+    }
+
+    /**
+     * 从数据库全量加载还没有结束的秒杀券 同时清除已经结束的
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.seckill.voucher-refresh-interval:60000}")
+    public void refreshVoucherCache() {
+        try {
+            // 直接合并到正在使用的map中 不替换引用 否则查询期间收到的通知会被覆盖丢失
+            long queryStart = System.currentTimeMillis();
+            List<SeckillVoucher> vouchers = query()
+                    .select("voucher_id", "begin_time", "end_time")
+                    .gt("end_time", LocalDateTime.now())
+                    .list();
+            Set<Long> ids = new HashSet<>(vouchers.size() * 2);
+            for (SeckillVoucher voucher : vouchers) {
+                ids.add(voucher.getVoucherId());
+                VoucherTime loaded = VoucherTime.of(voucher);
+                // 查询开始之后收到的记录比查询结果更新 保留
+                voucherTimes.compute(voucher.getVoucherId(),
+                        (id, time) -> time != null && time.receivedAt >= queryStart ? time : loaded);
+            }
+            // 不在查询结果中的记录 已经结束或者超过一个刷新间隔的以数据库为准删除
+            // 最近一个刷新间隔内收到的可能是查询开始之后才提交的 先保留到下一次刷新
+            long now = System.currentTimeMillis();
+            voucherTimes.entrySet().removeIf(entry -> !ids.contains(entry.getKey())
+                    && (entry.getValue().end <= now || now - entry.getValue().receivedAt >= refreshInterval));
+        } catch (Exception e) {
+            log.error("刷新秒杀券时间失败", e);
+        }
+    }
+
+    /**
+     * 秒杀券的开始和结束时间 毫秒时间戳
+     */
+    private static class VoucherTime {
+        final long begin;
+        final long end;
+        // 通过新增或者通知写入本地的时间 从数据库加载的记录为0
+        final long receivedAt;
+
+        VoucherTime(long begin, long end, long receivedAt) {
+            this.begin = begin;
+            this.end = end;
+            this.receivedAt = receivedAt;
+        }
+
+        static VoucherTime of(SeckillVoucher voucher) {
+            ZoneId zone = ZoneId.systemDefault();
+            return new VoucherTime(voucher.getBeginTime().atZone(zone).toInstant().toEpochMilli(),
+                    voucher.getEndTime().atZone(zone).toInstant().toEpochMilli(), 0);
+        }
+
+        VoucherTime received(long time) {
+            return new VoucherTime(begin, end, time);
+        }
+    }
 }
@@ -1,26 +1,43 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.NearbyShopResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.CacheClient;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopGeoMaintainer;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.ShopSuggestIndex;
 import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.*;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -32,6 +49,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -39,6 +57,72 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private ShopGeoMaintainer shopGeoMaintainer;
+
+    @Value("${hmdp.bloom.shop.expected-insertions:1000000}")
+    private long bloomExpectedInsertions;
+    @Value("${hmdp.bloom.shop.fpp:0.01}")
+    private double bloomFpp;
+    // 是否使用本地空间索引查询附近的商铺 关闭时使用Redis GEO
+    @Value("${hmdp.shop-geo.local-index:true}")
+    private boolean localGeoIndex = true;
+
+    // 查询附近商铺的半径(米)
+    private static final double SHOP_GEO_RADIUS = 5000;
+    private static final int SHOP_LOAD_PAGE_SIZE = 5000;
+
+    // 每个商铺类型的本地空间索引 第一次全量加载完成之前使用Redis GEO
+    private final ShopGeoIndex shopGeoIndex = new ShopGeoIndex();
+    private volatile boolean geoIndexLoaded;
+
+    // 是否使用本地搜索索引按名称查询商铺 关闭时使用LIKE查询
+    @Value("${hmdp.shop-search.enabled:true}")
+    private boolean searchIndexEnabled = true;
+    // 商铺名称和地址的本地倒排索引 增量段超过1000个商铺时合并
+    private final ShopSearchIndex shopSearchIndex = new ShopSearchIndex(1000);
+    private volatile boolean searchIndexLoaded;
+
+    // 每个前缀返回的补全名称数
+    @Value("${hmdp.shop-suggest.top-k:10}")
+    private int suggestTopK = 10;
+    // 商铺名称的前缀补全索引 后台重建后整体替换
+    private volatile ShopSuggestIndex shopSuggestIndex = ShopSuggestIndex.EMPTY;
+
+    // 每个快照保存的商铺数
+    @Value("${hmdp.shop-geo.snapshot-size:200}")
+    private int nearbySnapshotSize = 200;
+    // 游标分页查询附近商铺的快照 快照ID -> 按距离排列的商铺
+    private final Cache<String, NearbySnapshot> nearbySnapshots = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterAccess(60, TimeUnit.SECONDS)
+            .build();
+
+    // 商铺ID的布隆过滤器 用来拦截不存在的商铺ID 防止缓存穿透
+    private RedisBloomFilter shopBloomFilter;
+
+    @PostConstruct
+    private void initBloomFilter() {
+        shopBloomFilter = new RedisBloomFilter(stringRedisTemplate, SHOP_BLOOM_KEY, bloomExpectedInsertions, bloomFpp);
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, shopBloomFilter);
+    }
+
+    /**
+     * 启动时以及之后每隔一段时间根据tb_shop全量重建布隆过滤器
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${hmdp.bloom.shop.rebuild-interval:3600000}")
+    public void rebuildShopBloomFilter() {
+        try {
+            List<Object> ids = super.listObjs(new QueryWrapper<Shop>().select("id"));
+            shopBloomFilter.rebuild(ids);
+            // 重建期间新增的商铺可能写入了旧的过滤器 这里补写一次
+            long maxId = ids.stream().mapToLong(id -> Long.parseLong(id.toString())).max().orElse(0L);
+            super.listObjs(new QueryWrapper<Shop>().select("id").gt("id", maxId)).forEach(shopBloomFilter::add);
+            log.info("商铺布隆过滤器重建完成，共{}条", ids.size());
+        } catch (Exception e) {
+            log.error("商铺布隆过滤器重建失败", e);
+        }
+    }
 
     @Override
     public Result queryById(Long id) {
@@ -50,19 +134,84 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    @Override
+    @Transactional
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        super.save(shop);
+        // 将新的商铺ID加入布隆过滤器
+        shopBloomFilter.add(shop.getId());
+        // 更新Redis GEO索引和所有节点的空间索引、搜索索引
+        afterCommit(() -> {
+            shopGeoMaintainer.save(null, shop);
+            publishShopGeo(shop);
+            publishShopSearch(shop);
+        });
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional
     public Result update(Shop shop) {
         if (shop.getId() == null) {
             return Result.fail("商铺ID不能为空");
         }
+        // 类型或坐标发生变化时需要更新GEO索引 记录修改前的类型
+        boolean geoChanged = shop.getTypeId() != null || shop.getX() != null || shop.getY() != null;
+        Shop old = geoChanged ? super.getById(shop.getId()) : null;
         // 1.更新数据库 P38讲解
         super.updateById(shop);
-        // 2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        // 2.事务提交后删除缓存 同时通知所有节点清除本地缓存 提交前删除的话其他请求可能把旧数据重新写入缓存
+        // 3.事务提交后更新Redis GEO索引和所有节点的空间索引、搜索索引 请求中可能只有部分字段 这里读取完整的数据
+        Shop current = super.getById(shop.getId());
+        afterCommit(() -> {
+            cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
+            if (geoChanged) {
+                shopGeoMaintainer.save(old, current);
+                publishShopGeo(current);
+            }
+            publishShopSearch(current);
+        });
+        return Result.ok();
+    }
+
+    @Override
+    @Transactional
+    public Result deleteShop(Long id) {
+        Shop shop = super.getById(id);
+        if (shop == null) {
+            return Result.fail("商户ID不存在");
+        }
+        super.removeById(id);
+        // 事务提交后删除缓存 并从Redis GEO索引和所有节点的空间索引、搜索索引中移除
+        afterCommit(() -> {
+            cacheClient.delete(CACHE_SHOP_KEY + id);
+            shopGeoMaintainer.remove(shop);
+            applyShopGeoMessage(id.toString());
+            stringRedisTemplate.convertAndSend(SHOP_GEO_CHANNEL, id.toString());
+            applyShopSearchMessage(id.toString());
+            stringRedisTemplate.convertAndSend(SHOP_SEARCH_CHANNEL, id.toString());
+        });
         return Result.ok();
     }
 
+    /**
+     * 在当前事务提交后执行 没有事务时直接执行
+     * 索引和其他节点只能看到已经提交的修改 事务回滚时不会留下数据库中不存在的数据
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
     /**
      * @param typeId  商铺类型ID
      * @param current 页号
@@ -86,45 +235,335 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
         int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
 
+        // TODO 如果有位置坐标 则需要根据位置坐标查询店铺的ID和距离(公里)
+        List<Long> shopIdList = new ArrayList<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        Map<Long, Double> distanceMap = new HashMap<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        if (localGeoIndex && geoIndexLoaded) {
+            // 本地空间索引 方圆5KM内距离最近的end个商铺
+            ShopGeoIndex.Nearby nearby = shopGeoIndex.nearby(typeId.longValue(), x, y, SHOP_GEO_RADIUS, end);
+            for (int i = from; i < nearby.size(); i++) {
+                shopIdList.add(nearby.ids[i]);
+                distanceMap.put(nearby.ids[i], nearby.distances[i] / 1000);
+            }
+        } else {
+            queryShopIdsFromRedis(typeId, x, y, from, end, shopIdList, distanceMap);
+        }
+        if (shopIdList.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+
+        return Result.ok(loadShops(shopIdList, distanceMap));
+    }
+
+    /**
+     * 游标分页查询附近的商铺
+     * 第一次查询时取出最近的snapshot-size个商铺作为快照保存在本地，之后每一页只是快照的一个切片
+     * 快照过期、被淘汰或者请求落到其他节点时，从游标中记录的上一页最后一个商铺(距离, 商铺ID)之后继续查询并生成新的快照
+     *
+     * @param typeId 商铺类型ID 传入游标时可以为空
+     * @param x      经度
+     * @param y      纬度
+     * @param cursor 上一页返回的游标 第一页为空
+     * @return
+     */
+    @Override
+    public Result queryNearbyShops(Integer typeId, Double x, Double y, String cursor) {
+        // TODO 解析游标
+        NearbyCursor c;
+        if (StrUtil.isNotBlank(cursor)) {
+            c = NearbyCursor.decode(cursor);
+            if (c == null) {
+                return Result.fail("游标无效");
+            }
+        } else {
+            if (typeId == null || x == null || y == null) {
+                return Result.fail("缺少商铺类型或位置坐标");
+            }
+            c = new NearbyCursor(null, 0, typeId.longValue(), x, y, -1, -1);
+        }
+        // TODO 快照不存在或者已经读完但后面还有数据时 从游标位置继续查询新的快照
+        NearbySnapshot snapshot = c.snapshotId == null ? null : nearbySnapshots.getIfPresent(c.snapshotId);
+        int position = c.position;
+        String snapshotId = c.snapshotId;
+        if (snapshot == null || (position >= snapshot.nearby.size() && !snapshot.complete)) {
+            ShopGeoIndex.Nearby nearby = searchNearby(c.typeId, c.x, c.y, nearbySnapshotSize, c.lastDistance, c.lastId);
+            snapshot = new NearbySnapshot(nearby, nearby.size() < nearbySnapshotSize);
+            snapshotId = UUID.randomUUID().toString().replace("-", "");
+            nearbySnapshots.put(snapshotId, snapshot);
+            position = 0;
+        }
+        // TODO 取出快照中的一页
+        long[] ids = snapshot.nearby.ids;
+        double[] distances = snapshot.nearby.distances;
+        int to = Math.min(position + SystemConstants.DEFAULT_PAGE_SIZE, ids.length);
+        List<Long> shopIdList = new ArrayList<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        Map<Long, Double> distanceMap = new HashMap<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        for (int i = position; i < to; i++) {
+            shopIdList.add(ids[i]);
+            distanceMap.put(ids[i], distances[i] / 1000);
+        }
+        NearbyShopResult r = new NearbyShopResult();
+        r.setList(shopIdList.isEmpty() ? Collections.emptyList() : loadShops(shopIdList, distanceMap));
+        if (to > position && (to < ids.length || !snapshot.complete)) {
+            r.setCursor(new NearbyCursor(snapshotId, to, c.typeId, c.x, c.y, distances[to - 1], ids[to - 1]).encode());
+        }
+        return Result.ok(r);
+    }
+
+    /**
+     * 查询排在(afterDistance, afterId)之后距离最近的商铺
+     * 本地空间索引没有加载时使用Redis GEORADIUS 这时需要取出整个范围内的商铺再过滤
+     */
+    private ShopGeoIndex.Nearby searchNearby(Long typeId, double x, double y, int limit, double afterDistance, long afterId) {
+        if (localGeoIndex && geoIndexLoaded) {
+            return shopGeoIndex.nearby(typeId, x, y, SHOP_GEO_RADIUS, limit, afterDistance, afterId);
+        }
+        RedisGeoCommands.GeoRadiusCommandArgs args = RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs()
+                .includeDistance()
+                .sortAscending();
+        if (afterDistance < 0) {
+            args.limit(limit);
+        }
+        GeoResults<RedisGeoCommands.GeoLocation<String>> result = stringRedisTemplate.opsForGeo().radius(
+                SHOP_GEO_KEY + typeId, new Circle(new Point(x, y), new Distance(SHOP_GEO_RADIUS, RedisGeoCommands.DistanceUnit.METERS)), args);
+        if (result == null) {
+            return ShopGeoIndex.Nearby.EMPTY;
+        }
+        // 同样的距离按商铺ID排列 与本地空间索引一致
+        List<double[]> candidates = new ArrayList<>();
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> geoResult : result.getContent()) {
+            long shopId = Long.parseLong(geoResult.getContent().getName());
+            double d = geoResult.getDistance().getValue();
+            if (d > afterDistance || (d == afterDistance && shopId > afterId)) {
+                candidates.add(new double[]{d, shopId});
+            }
+        }
+        candidates.sort((a, b) -> a[0] != b[0] ? Double.compare(a[0], b[0]) : Double.compare(a[1], b[1]));
+        int n = Math.min(limit, candidates.size());
+        long[] ids = new long[n];
+        double[] distances = new double[n];
+        for (int i = 0; i < n; i++) {
+            distances[i] = candidates.get(i)[0];
+            ids[i] = (long) candidates.get(i)[1];
+        }
+        return new ShopGeoIndex.Nearby(ids, distances);
+    }
+
+    /**
+     * 根据shopId批量查询商铺信息并设置距离 优先从缓存中查询 未命中的商铺通过一次IN查询获取
+     *
+     * @param shopIdList  按距离排列的商铺ID
+     * @param distanceMap 商铺ID到距离(公里)的映射
+     * @return
+     */
+    private List<Shop> loadShops(List<Long> shopIdList, Map<Long, Double> distanceMap) {
+        Map<Long, Shop> shopMap = cacheClient.queryBatch(CACHE_SHOP_KEY, shopIdList, Shop.class,
+                ids -> super.listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shopList = new ArrayList<>(shopMap.size());
+        for (Shop cached : shopMap.values()) {
+            // 缓存中的对象是共享的 复制一份再设置距离
+            Shop shop = BeanUtil.copyProperties(cached, Shop.class);
+            shop.setDistance(distanceMap.get(shop.getId()));
+            shopList.add(shop);
+        }
+        return shopList;
+    }
+
+    /**
+     * 通过Redis GEORADIUS查询第from到第end个商铺 本地空间索引关闭或者还没有加载完成时使用
+     */
+    private void queryShopIdsFromRedis(Integer typeId, Double x, Double y, int from, int end,
+                                       List<Long> shopIdList, Map<Long, Double> distanceMap) {
         String key = SHOP_GEO_KEY + typeId;
-        // TODO 如果有位置坐标 则需要根据位置坐标到Redis中查询店铺的ID
         GeoResults<RedisGeoCommands.GeoLocation<String>> result = stringRedisTemplate.opsForGeo().radius(
                 key,
-                new Circle(new Point(x, y), new Distance(5, Metrics.KILOMETERS)), // 方圆5KM
+                new Circle(new Point(x, y), new Distance(SHOP_GEO_RADIUS / 1000, Metrics.KILOMETERS)), // 方圆5KM
                 RedisGeoCommands.GeoRadiusCommandArgs.
                         newGeoRadiusArgs().
                         includeDistance(). // 查询结果包含距离
                         sortAscending(). // 按照距离从近到远
                         limit(end) // 分页 显示从第一条到第end条
         );
-
-        // TODO 根据从redis中查询到的结果封装
         if (result == null) {
-            return Result.ok(Collections.emptyList());
+            return;
         }
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = result.getContent();
+        result.getContent().stream().skip(from).forEach(geoResult -> {
+            Long shopId = Long.valueOf(geoResult.getContent().getName());
+            shopIdList.add(shopId);
+            distanceMap.put(shopId, geoResult.getDistance().getValue());
+        });
+    }
 
-        if (content.size() <= from) {
-            return Result.ok(Collections.emptyList());
+    /**
+     * 启动时以及之后每隔一段时间根据tb_shop全量加载本地空间索引
+     * 两次加载之间的新增和修改通过频道消息同步到所有节点
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${hmdp.shop-geo.reload-interval:600000}")
+    public void reloadShopGeoIndex() {
+        if (!localGeoIndex) {
+            return;
+        }
+        try {
+            List<Object[]> shops = new ArrayList<>();
+            // 读取期间通过频道收到的变化会在替换数据之后重新执行
+            shopGeoIndex.reload(() -> {
+                forEachShop(shop -> {
+                    if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                        shops.add(new Object[]{shop.getId(), shop.getTypeId(), shop.getX(), shop.getY()});
+                    }
+                }, "id", "type_id", "x", "y");
+                return shops;
+            });
+            geoIndexLoaded = true;
+            log.info("商铺空间索引加载完成，共{}条", shops.size());
+        } catch (Exception e) {
+            log.error("商铺空间索引加载失败", e);
         }
+    }
 
-        List<Long> shopIdList = new ArrayList<>(content.size());
-        Map<String, Distance> distanceMap = new HashMap<>(content.size());
-        content.stream().skip(from).forEach(geoResult -> {
-            String shopIdStr = geoResult.getContent().getName();
-            shopIdList.add(Long.valueOf(shopIdStr));
-            Distance distance = geoResult.getDistance();
-            distanceMap.put(shopIdStr, distance);
-        });
+    /**
+     * 启动时以及之后每隔一段时间根据tb_shop全量加载本地搜索索引
+     * 两次加载之间的新增和修改通过频道消息同步到所有节点
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${hmdp.shop-search.reload-interval:600000}")
+    public void reloadShopSearchIndex() {
+        if (!searchIndexEnabled) {
+            return;
+        }
+        try {
+            List<Object[]> shops = new ArrayList<>();
+            // 读取期间通过频道收到的变化在重建索引时优先
+            shopSearchIndex.reload(() -> {
+                forEachShop(shop -> shops.add(new Object[]{shop.getId(), shop.getName(), shop.getAddress(), shop.getScore(), shop.getSold()}),
+                        "id", "name", "address", "score", "sold");
+                return shops;
+            });
+            searchIndexLoaded = true;
+            log.info("商铺搜索索引加载完成，共{}条", shops.size());
+        } catch (Exception e) {
+            log.error("商铺搜索索引加载失败", e);
+        }
+    }
 
-        // 根据shopId查询商铺信息
+    /**
+     * 启动时以及之后每隔一段时间根据tb_shop重建前缀补全索引 构建完成后整体替换 查询不会看到构建了一半的索引
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${hmdp.shop-suggest.rebuild-interval:300000}")
+    public void rebuildShopSuggestIndex() {
+        try {
+            List<Object[]> shops = new ArrayList<>();
+            forEachShop(shop -> shops.add(new Object[]{shop.getName(), shop.getScore(), shop.getSold()}),
+                    "id", "name", "score", "sold");
+            shopSuggestIndex = ShopSuggestIndex.build(shops, suggestTopK);
+            log.info("商铺补全索引重建完成，共{}个名称", shopSuggestIndex.size());
+        } catch (Exception e) {
+            log.error("商铺补全索引重建失败", e);
+        }
+    }
 
-        String idsStr = StrUtil.join(",", shopIdList);
-        List<Shop> shopList = super.query().in("id", shopIdList).last("order by field(id, " + idsStr + ")").list();
-        for (Shop shop : shopList) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+    @Override
+    public Result suggest(String prefix) {
+        return Result.ok(shopSuggestIndex.suggest(prefix));
+    }
+
+    /**
+     * 按ID分页读取所有商铺 避免一次读取整张表
+     *
+     * @param consumer 处理每一个商铺
+     * @param columns  需要读取的列
+     */
+    private void forEachShop(Consumer<Shop> consumer, String... columns) {
+        long lastId = 0;
+        while (true) {
+            List<Shop> page = super.query()
+                    .select(columns)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + SHOP_LOAD_PAGE_SIZE)
+                    .list();
+            page.forEach(consumer);
+            if (page.size() < SHOP_LOAD_PAGE_SIZE) {
+                return;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    /**
+     * 通知所有节点更新本地搜索索引 消息内容是商铺名称、地址、评分和销量的JSON 删除时只有商铺ID
+     */
+    private void publishShopSearch(Shop shop) {
+        if (shop == null) {
+            return;
         }
-        return Result.ok(shopList);
+        Shop doc = new Shop();
+        doc.setId(shop.getId());
+        doc.setName(shop.getName());
+        doc.setAddress(shop.getAddress());
+        doc.setScore(shop.getScore());
+        doc.setSold(shop.getSold());
+        String message = JSONUtil.toJsonStr(doc);
+        applyShopSearchMessage(message);
+        stringRedisTemplate.convertAndSend(SHOP_SEARCH_CHANNEL, message);
+    }
+
+    @Override
+    public void applyShopSearchMessage(String message) {
+        if (!message.startsWith("{")) {
+            shopSearchIndex.remove(Long.valueOf(message));
+            return;
+        }
+        Shop doc = JSONUtil.toBean(message, Shop.class);
+        shopSearchIndex.put(doc.getId(), doc.getName(), doc.getAddress(), doc.getScore(), doc.getSold());
+    }
+
+    /**
+     * 根据名称或地址关键字分页查询商铺 本地搜索索引没有加载时使用LIKE查询
+     *
+     * @param name    关键字
+     * @param current 页码
+     * @return
+     */
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        if (StrUtil.isBlank(name) || !searchIndexEnabled || !searchIndexLoaded) {
+            // 根据类型分页查询
+            Page<Shop> page = super.query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            // 返回数据
+            return Result.ok(page.getRecords());
+        }
+        // TODO 从本地搜索索引中查询一页商铺ID 再批量查询商铺信息
+        List<Long> shopIdList = shopSearchIndex.search(name, (current - 1) * SystemConstants.MAX_PAGE_SIZE, SystemConstants.MAX_PAGE_SIZE);
+        if (shopIdList.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        return Result.ok(loadShops(shopIdList, Collections.emptyMap()));
+    }
+
+    /**
+     * 通知所有节点更新本地空间索引 消息内容是 商铺ID:类型ID:经度:纬度
+     */
+    private void publishShopGeo(Shop shop) {
+        if (shop == null || shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        String message = shop.getId() + ":" + shop.getTypeId() + ":" + shop.getX() + ":" + shop.getY();
+        applyShopGeoMessage(message);
+        stringRedisTemplate.convertAndSend(SHOP_GEO_CHANNEL, message);
+    }
+
+    @Override
+    public void applyShopGeoMessage(String message) {
+        String[] parts = message.split(":");
+        Long shopId = Long.valueOf(parts[0]);
+        if (parts.length < 4) {
+            shopGeoIndex.remove(shopId);
+            return;
+        }
+        shopGeoIndex.put(shopId, Long.valueOf(parts[1]), Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
     }
 
 
@@ -134,12 +573,63 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @param id
      */
     public void rebuildCacheByShopId(Long id, Long expiredSecond) throws InterruptedException {
-        RedisData redisData = new RedisData();
         // 模拟缓存重建延迟
         Thread.sleep(200);
         Shop shop = super.getById(id);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expiredSecond));
-        redisData.setData(shop);
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expiredSecond, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 附近商铺的查询快照
+     */
+    private static class NearbySnapshot {
+        final ShopGeoIndex.Nearby nearby;
+        // 快照中已经包含范围内所有剩余的商铺
+        final boolean complete;
+
+        NearbySnapshot(ShopGeoIndex.Nearby nearby, boolean complete) {
+            this.nearby = nearby;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * 附近商铺的分页游标 快照ID:快照中的位置:类型ID:经度:纬度:上一页最后一个商铺的距离:上一页最后一个商铺的ID
+     * 编码为Base64 对前端来说是不透明的字符串
+     */
+    private static class NearbyCursor {
+        final String snapshotId;
+        final int position;
+        final Long typeId;
+        final double x;
+        final double y;
+        final double lastDistance;
+        final long lastId;
+
+        NearbyCursor(String snapshotId, int position, Long typeId, double x, double y, double lastDistance, long lastId) {
+            this.snapshotId = snapshotId;
+            this.position = position;
+            this.typeId = typeId;
+            this.x = x;
+            this.y = y;
+            this.lastDistance = lastDistance;
+            this.lastId = lastId;
+        }
+
+        String encode() {
+            String raw = snapshotId + ":" + position + ":" + typeId + ":" + x + ":" + y + ":" + lastDistance + ":" + lastId;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static NearbyCursor decode(String cursor) {
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+                return new NearbyCursor(parts[0], Integer.parseInt(parts[1]), Long.valueOf(parts[2]),
+                        Double.parseDouble(parts[3]), Double.parseDouble(parts[4]),
+                        Double.parseDouble(parts[5]), Long.parseLong(parts[6]));
+            } catch (Exception e) {
+                return null;
+            }
+        }
     }
 }
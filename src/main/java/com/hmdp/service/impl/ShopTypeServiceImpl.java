@@ -1,13 +1,11 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.CacheClient;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
@@ -27,15 +25,15 @@ import static com.hmdp.utils.RedisConstants.CACHE_SHOP_LIST;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
 
     @Override
     public Result getTypeList() {
         // TODO 首先从Redis中查询根据type信息是否存在
-        String typeListJSON = stringRedisTemplate.opsForValue().get(CACHE_SHOP_LIST);
+        List<ShopType> cachedList = cacheClient.getList(CACHE_SHOP_LIST, ShopType.class);
         // TODO 如果存在则直接返回
-        if (StrUtil.isNotBlank(typeListJSON)) {
-            return Result.ok(JSONUtil.toList(typeListJSON, ShopType.class));
+        if (cachedList != null && !cachedList.isEmpty()) {
+            return Result.ok(cachedList);
         }
         // TODO 如果不存在则到数据库中查询
         List<ShopType> shopTypeList = super.query().orderByAsc("sort").list();
@@ -44,8 +42,8 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
             return Result.fail("查询商户分类信息失败");
         }
         // TODO 如果数据库中查出来了 则将数据存储到Redis中
-        // TODO 将查出的列表转化为JSON 存入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_LIST, JSONUtil.toJsonPrettyStr(shopTypeList));
+        // TODO 将查出的列表序列化后存入redis
+        cacheClient.set(CACHE_SHOP_LIST, shopTypeList);
         // TODO 返回结果
         return Result.ok(shopTypeList);
     }
@@ -4,6 +4,7 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -11,19 +12,27 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.LoginSessionCache;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SignedLoginTokens;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
+import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -43,6 +52,15 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private LoginSessionCache loginSessionCache;
+
+    @Resource
+    private SignedLoginTokens signedLoginTokens;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //1. 校验手机号
@@ -89,10 +107,14 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             user = createUserWithPhone(phone);
         }
 
+        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
+        // 无状态模式 用户信息直接签名后放在token中 不保存到Redis
+        if (signedLoginTokens.isEnabled()) {
+            return Result.ok(signedLoginTokens.issue(userDTO));
+        }
         // 使用UUID生成Token
         String token = UUID.fastUUID().toString(true);
         // 将用户转化为Map
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
         // 因为我们保存的到Redis的时候使用的是String类型，然而在userDto中ID是Long类型，因此会报错
         // 使用setFieldValueEditor将userDto所有字段都转化成String类型，然后保存
         Map<String, Object> userMap = BeanUtil.beanToMap(userDTO, new HashMap<>(), CopyOptions.create()
@@ -112,6 +134,27 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     }
 
 
+    /**
+     * 退出登录 删除Redis中的登录信息 并清除所有节点的本地缓存
+     *
+     * @param token
+     * @return
+     */
+    @Override
+    public Result logout(String token) {
+        if (StrUtil.isBlank(token)) {
+            return Result.ok();
+        }
+        if (signedLoginTokens.isEnabled()) {
+            signedLoginTokens.revoke(token);
+            return Result.ok();
+        }
+        stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        loginSessionCache.invalidate(token);
+        return Result.ok();
+    }
+
+
     private User createUserWithPhone(String phone) {
         // 1.创建用户
         User user = new User();
@@ -142,4 +185,56 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         stringRedisTemplate.opsForValue().setBit(key, dayOfMonth - 1, true);
         return Result.ok();
     }
+
+    /**
+     * 根据用户ID批量查询用户的公开信息 优先从缓存中查询 未命中的用户通过一次IN查询获取
+     *
+     * @param ids
+     * @return 按照ids顺序排列的用户ID到用户信息的映射
+     */
+    @Override
+    public Map<Long, UserDTO> queryUserDTOByIds(Collection<Long> ids) {
+        return cacheClient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> super.listByIds(missIds).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 修改用户后删除缓存的用户公开信息 包括其他节点的本地缓存
+     */
+    @Override
+    public boolean updateById(User entity) {
+        boolean updated = super.updateById(entity);
+        if (updated) {
+            evictUserCache(entity.getId());
+        }
+        return updated;
+    }
+
+    @Override
+    public boolean removeById(Serializable id) {
+        boolean removed = super.removeById(id);
+        if (removed) {
+            evictUserCache(id);
+        }
+        return removed;
+    }
+
+    /**
+     * 在当前事务提交后删除缓存 避免其他请求在提交前把旧数据重新写入缓存
+     */
+    private void evictUserCache(Serializable id) {
+        Runnable evict = () -> cacheClient.delete(CACHE_USER_KEY + id);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evict.run();
+                }
+            });
+        } else {
+            evict.run();
+        }
+    }
 }
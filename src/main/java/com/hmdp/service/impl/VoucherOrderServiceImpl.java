@@ -3,35 +3,42 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
-import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RingBuffer;
+import com.hmdp.utils.SeckillStockBuckets;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -57,139 +64,240 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
-    // 加载秒杀的异步脚本
-    private static DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillStockBuckets seckillStockBuckets;
 
     // 使用消息队列代替阻塞队列后Lua脚本
     private static DefaultRedisScript<Long> SECKILL_SCRIPT_WITH_MQ;
 
     static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-
         SECKILL_SCRIPT_WITH_MQ = new DefaultRedisScript<>();
         SECKILL_SCRIPT_WITH_MQ.setLocation(new ClassPathResource("seckillWithMQ.lua"));
         SECKILL_SCRIPT_WITH_MQ.setResultType(Long.class);
     }
 
-    // 用于向数据库写入订单信息的阻塞队列
-    private BlockingQueue<VoucherOrder> ordertasks = new ArrayBlockingQueue<>(1024 * 1024);
-    // 创建线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Value("${hmdp.order.ring.buffer-size:65536}")
+    private int ringBufferSize = 65536;
+    @Value("${hmdp.order.ring.consumers:2}")
+    private int ringConsumers = 2;
+    @Value("${hmdp.order.ring.batch-size:100}")
+    private int ringBatchSize = 100;
+    @Value("${hmdp.order.ring.wait-strategy:sleeping}")
+    private String ringWaitStrategy = "sleeping";
+
+    // 用于向数据库写入订单信息的环形缓冲区 槽位中的订单对象会被重复使用
+    private RingBuffer<VoucherOrder> orderRingBuffer;
+    // 写库线程池
+    private ExecutorService orderRingExecutor;
 
     /**
-     * 创建一个线程任务 用于从阻塞队列中取出订单，并写入数据库中 适用于使用阻塞队列方法
+     * 环形缓冲区的批量处理器 一批订单在一个事务中写入数据库 适用于使用阻塞队列方法
+     * 用户重复下单在Lua脚本中已经判断过了 因此这里不再对每个订单加锁
+     *
+     * @param orders 槽位中的订单对象 处理完之后会被生产者覆盖 不能保存引用
      */
-    private class VoucherOrderHandler implements Runnable {
-        @Override
-        public void run() {
-            while (true) {
-                // 从阻塞队列中取出订单
+    private void handleOrderBatch(List<VoucherOrder> orders) {
+        try {
+            self.saveOrderBatch(orders);
+        } catch (Exception e) {
+            log.error("批量写入订单失败 改为逐条写入", e);
+            for (VoucherOrder order : orders) {
                 try {
-                    VoucherOrder order = ordertasks.take();
-                    handlerVoucherOrder(order);
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
+                    self.saveOrderBatch(Collections.singletonList(order));
+                } catch (Exception ex) {
+                    log.error("写入订单失败 id={} userId={} voucherId={}",
+                            order.getId(), order.getUserId(), order.getVoucherId(), ex);
+                    deadLetter(order, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * 逐条写入仍然失败的订单转入死信队列 与消息队列方式共用 由人工或补偿任务处理
+     * Lua脚本已经扣减了Redis库存并记录了下单用户 不能直接丢弃；死信队列也写入失败时回滚Redis中的扣减
+     *
+     * @param order 槽位中的订单对象 只读取字段
+     */
+    private void deadLetter(VoucherOrder order, Exception cause) {
+        Map<String, String> value = new HashMap<>(8);
+        value.put("id", order.getId().toString());
+        value.put("userId", order.getUserId().toString());
+        value.put("voucherId", order.getVoucherId().toString());
+        value.put("source", "ring");
+        value.put("error", String.valueOf(cause.getMessage()));
+        try {
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DEAD_LETTER_STREAM, value);
+        } catch (Exception e) {
+            log.error("订单转入死信队列失败 回滚Redis库存 id={}", order.getId(), e);
+            try {
+                seckillStockBuckets.release(order.getVoucherId(), order.getUserId());
+                if (soldOutVouchers.containsKey(order.getVoucherId())) {
+                    clearSoldOut(order.getVoucherId());
                 }
+            } catch (Exception ex) {
+                log.error("回滚Redis库存失败 id={} userId={} voucherId={}",
+                        order.getId(), order.getUserId(), order.getVoucherId(), ex);
             }
         }
     }
 
+    @Value("${hmdp.order.stream.enabled:false}")
+    private boolean streamEnabled = false;
+    @Value("${hmdp.order.stream.consumers:4}")
+    private int streamConsumers = 4;
+    @Value("${hmdp.order.stream.batch-size:100}")
+    private int streamBatchSize = 100;
+
+    // 消息队列的消费者线程池 每个线程是消费者组中的一个消费者
+    private ExecutorService orderStreamExecutor;
+    // 关闭时置为false 消费者读完当前这一批后退出
+    private volatile boolean streamRunning = true;
+
     /**
-     * 创建一个线程任务 用于从消息队列中取出订单，并写入数据库中 适用于使用消息队列方法
+     * 创建一个线程任务 用于从消息队列中批量取出订单，并写入数据库中 适用于使用消息队列方法
+     * 同一个消费者组中的多个消费者分摊消息 每个消费者必须使用不同的名称
      */
     private class VoucherOrderHandlerWithMQ implements Runnable {
-        String queueName = "stream.orders";
+        private final String consumerName;
+
+        VoucherOrderHandlerWithMQ(String consumerName) {
+            this.consumerName = consumerName;
+        }
 
         /**
          * 负责一直从消息队列中取消息
          */
         @Override
         public void run() {
-            while (true) {
+            while (streamRunning && !Thread.currentThread().isInterrupted()) {
                 try {
-                    // 1.从消息队列中一条消息 XREADGROUP g1 c1 Count 1 block 2000 STREAMS stream.orders >
-                    // 返回list原因是可能一次读取多个消息
+                    // 1.从消息队列中批量读取消息 XREADGROUP g1 consumerName COUNT batchSize BLOCK 2000 STREAMS stream.orders >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(streamBatchSize).block(Duration.ofSeconds(2)),
                             // ReadOffset.lastConsumed代表 >
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.lastConsumed())
                     );
                     // 2.判断消息是否获取成功
                     if (list == null || list.isEmpty()) {
                         // 当前无消息 继续循环
                         continue;
                     }
-                    // 3.执行下单业务
-                    // 解析消息 封装成对象
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    // 获取键值对 这个就是我们保存的对象
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 下单 将结果保存到数据库
-                    handlerVoucherOrder(voucherOrder);
-                    // 4.发送ACK确认消息
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    // 3.批量下单 并一次性发送ACK
+                    handleOrderRecords(list);
                 } catch (Exception e) {
-                    log.error("处理订单异常");
+                    if (!streamRunning) {
+                        // 关闭时连接已经断开 没有确认的消息留在pendingList中 重启后继续处理
+                        break;
+                    }
+                    log.error("处理订单异常", e);
                     handPendingList();
                 }
             }
         }
 
         private void handPendingList() {
-            while (true) {
+            while (streamRunning && !Thread.currentThread().isInterrupted()) {
                 try {
-                    // 1.从消息队列的pendingList中一条消息 XREADGROUP g1 c1 Count 1  STREAMS stream.orders 0
-                    // 返回list原因是可能一次读取多个消息
+                    // 1.从当前消费者的pendingList中批量读取消息 XREADGROUP g1 consumerName COUNT batchSize STREAMS stream.orders 0
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            // ReadOffset.lastConsumed代表 >
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(streamBatchSize),
+                            StreamOffset.create(SECKILL_ORDER_STREAM, ReadOffset.from("0"))
                     );
                     // 2.判断消息是否获取成功
                     if (list == null || list.isEmpty()) {
                         // pending-List中没有消息，那么所有消息都已经正常接收 退出当前循环
                         break;
                     }
-                    // 3.执行下单业务
-                    // 解析消息 封装成对象
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    // 获取键值对 这个就是我们保存的对象
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 下单 将结果保存到数据库
-                    handlerVoucherOrder(voucherOrder);
-                    // 4.发送ACK确认消息
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    // 3.批量下单 并一次性发送ACK
+                    handleOrderRecords(list);
                 } catch (Exception e) {
-                    try {
-                        log.error("处理pendingList异常");
-                        // 暂停20ms防止处理太频繁 类似于 block 2000
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
+                    // 不在这里无限重试 剩下的消息空闲一段时间后由OrderStreamRecovery认领 多次失败后转入死信队列
+                    log.error("处理pendingList异常", e);
+                    break;
                 }
             }
         }
     }
 
     /**
-     * 当构造方法执行完毕后将监听阻塞队列的方法运行起来
+     * 将一批消息转换成订单 在一个事务中写入数据库 成功后用一条XACK确认整批消息
+     *
+     * @param records
+     */
+    private void handleOrderRecords(List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        RecordId[] recordIds = new RecordId[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            MapRecord<String, Object, Object> record = records.get(i);
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            recordIds[i] = record.getId();
+        }
+        self.saveOrderBatch(orders);
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, recordIds);
+    }
+
+    /**
+     * 创建消费者组 XGROUP CREATE stream.orders g1 0 MKSTREAM 消费者组已经存在时忽略
+     */
+    private void createOrderGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP 消费者组已经存在
+            log.debug("消费者组已经存在 {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 当构造方法执行完毕后将写库线程运行起来
      */
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-        // 使用消息队列实现秒杀 由于Windows版本的Redis没有Stream队列 因此这里我们还是使用之前的基于阻塞队列的方式实现秒杀
-        // SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandlerWithMQ());
+        orderRingBuffer = new RingBuffer<>(ringBufferSize, VoucherOrder::new, RingBuffer.WaitStrategy.of(ringWaitStrategy));
+        orderRingExecutor = Executors.newFixedThreadPool(ringConsumers);
+        orderRingBuffer.start(ringConsumers, ringBatchSize, this::handleOrderBatch, orderRingExecutor);
+        // 使用消息队列实现秒杀 由于Windows版本的Redis没有Stream队列 因此默认关闭 通过hmdp.order.stream.enabled开启
+        if (streamEnabled) {
+            createOrderGroup();
+            // 消费者名称使用 进程号@主机名-序号 多个实例部署时不会重名
+            String consumerPrefix = ManagementFactory.getRuntimeMXBean().getName();
+            orderStreamExecutor = Executors.newFixedThreadPool(streamConsumers);
+            for (int i = 0; i < streamConsumers; i++) {
+                orderStreamExecutor.submit(new VoucherOrderHandlerWithMQ(consumerPrefix + "-" + i));
+            }
+        }
+    }
+
+    /**
+     * 停止接收新订单 写库线程写完缓冲区中剩余的订单后退出
+     * 消息队列的消费者停止读取 阻塞在XREADGROUP上的线程通过中断唤醒
+     */
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        orderRingBuffer.shutdown();
+        orderRingExecutor.shutdown();
+        if (orderStreamExecutor != null) {
+            streamRunning = false;
+            orderStreamExecutor.shutdownNow();
+            if (!orderStreamExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("消息队列消费者没有在5秒内退出");
+            }
+        }
     }
 
-    // 当前类的代理类对象
-    IVoucherOrderService proxy = null;
+    // 已经卖完的优惠券 值为标记的过期时间 过期后重新通过Redis判断 防止错过补货消息后一直拒绝
+    private final Map<Long, Long> soldOutVouchers = new ConcurrentHashMap<>();
+    @Value("${hmdp.seckill.sold-out-ttl:60000}")
+    private long soldOutTtl = 60000L;
+
+    // 当前类的代理类对象 消费者线程中没有AopContext 因此直接注入代理 使用@Lazy避免循环依赖
+    @Resource
+    @Lazy
+    private IVoucherOrderService self;
 
     /**
      * 实现优惠券的秒杀 使用分布式锁的方式解决
@@ -199,24 +307,11 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckillVoucherWithLock(Long voucherId) {
-        // TODO 用户提交优惠券ID 查看该优惠券是否存在 如果不存在返回错误信息
-        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
-        if (seckillVoucher == null) {
-            return Result.fail("优惠券不存在");
-        }
-        // TODO 查询优惠券售卖是否已经开始 如果不在返回错误信息
-        LocalDateTime beginTime = seckillVoucher.getBeginTime();
-        LocalDateTime endTime = seckillVoucher.getEndTime();
-        if (beginTime.isAfter(LocalDateTime.now())) {
-            return Result.fail("秒杀还没有开始");
-        }
-        // TODO 查询优惠券售卖是否已经结束 如果不在返回错误信息
-        if (!endTime.isAfter(LocalDateTime.now())) {
-            return Result.fail("秒杀还已经结束");
-        }
-        // TODO 查询优惠券是否还有库存 如果没有返回错误信息
-        if (seckillVoucher.getStock() < 1) {
-            return Result.fail("卖光了！");
+        // TODO 检查优惠券是否存在 是否在秒杀时间内 是否已经卖完 只读取内存 不查询数据库
+        // 库存在saleVoucherWithLock中扣减时判断
+        String error = checkSeckill(voucherId);
+        if (error != null) {
+            return Result.fail(error);
         }
 
         // 手动获取锁 这里锁的key是order+用户id，因为只有相同的用户才需要获取锁，不同的用户不需要进行判断
@@ -263,6 +358,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .eq("voucher_id", voucherId)
                 .gt("stock", 0).update();
         if (!success) {
+            markSoldOut(voucherId);
             return Result.fail("卖光了！");
         }
         // TODO 创建订单对象
@@ -278,86 +374,72 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 
     /**
-     * 使用Lua脚本+阻塞队列异步下单
+     * 使用Lua脚本+环形缓冲区异步下单
      *
      * @param voucherId
      * @return
      */
     @Override
     public Result seckillVoucher(Long voucherId) {
-        // TODO 执行Lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                UserHolder.getUser().getId().toString()
-        );
+        // TODO 检查优惠券是否存在 是否在秒杀时间内 是否已经卖完 不通过的请求不执行Lua脚本
+        String error = checkSeckill(voucherId);
+        if (error != null) {
+            return Result.fail(error);
+        }
+        Long userId = UserHolder.getUser().getId();
+        // TODO 执行Lua脚本 库存分桶时由SeckillStockBuckets路由到用户所在分桶
+        int r = seckillStockBuckets.tryAcquire(voucherId, userId);
         // TODO 判断结果
         // 如果不是0 返回错误信息
-        int r = result.intValue();
+        if (r == 1) {
+            markSoldOut(voucherId);
+        }
         if (r != 0) {
             // 下单失败
             return Result.fail(r == 1 ? "库存不足" : "一个用户只能下一单");
         }
-        // 如果为0 则将下单信息存入阻塞队列
-        // TODO 保存到阻塞队列 创建阻塞队列 创建线程池 创建线程任务，在初始化时将线程任务提交到线程池中
-        // 封装order对象
+        // 如果为0 则将下单信息写入环形缓冲区
+        // TODO 写入环形缓冲区 写库线程在初始化时已经启动
         Long orderId = redisIdWorker.nextId("order");
-        VoucherOrder voucherOrder = new VoucherOrder();
-        voucherOrder.setId(orderId);
-        voucherOrder.setUserId(UserHolder.getUser().getId());
-        voucherOrder.setVoucherId(voucherId);
-
-        ordertasks.add(voucherOrder);
-
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
+        // 直接写入槽位中预先分配的订单对象
+        boolean published = orderRingBuffer.tryPublish(order -> {
+            order.setId(orderId);
+            order.setUserId(userId);
+            order.setVoucherId(voucherId);
+        });
+        if (!published) {
+            // 缓冲区已满 写库跟不上下单速度 回滚Redis中的扣减 让用户稍后重试
+            log.warn("订单缓冲区已满 backlog={}", orderRingBuffer.backlog());
+            seckillStockBuckets.release(voucherId, userId);
+            // 归还的库存可能让已经卖完的优惠券重新有货
+            if (soldOutVouchers.containsKey(voucherId)) {
+                clearSoldOut(voucherId);
+            }
+            return Result.fail("下单人数过多，请稍后重试");
+        }
 
         // TODO 返回订单ID
         return Result.ok(orderId);
     }
 
-    /**
-     * 用于将订单信息写入到数据库中的前置操作
-     *
-     * @param order
-     */
-    private void handlerVoucherOrder(VoucherOrder order) {
-        // 获取用户ID 由于执行这个方法是一个全新的线程，不是主线程
-        // 因此用户ID不可以从ThreadLocal中获取，这里从order中获取
-        // TODO 实际上用户重复下单在Redis中已经判断过了，并且负责写入数据库的线程是单线程，因此这里使用锁是非必要的
-        Long userId = order.getUserId();
-        // 创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = lock.tryLock();
-        if (!isLock) {
-            log.error("不允许重复下单");
-            return;
-        }
-        try {
-            // 将订单保存到数据库
-            proxy.saleVoucher(order);
-        } finally {
-            lock.unlock();
-        }
-    }
-
     @Transactional
     @Override
     public void saleVoucher(VoucherOrder order) {
         Long userId = order.getUserId();
         // TODO 根据当前的用户ID和优惠券ID到订单表中查询是否已经存在，如果已经存在则返回错误信息 保证一人一单
-        int count = this.query().eq("user_Id", userId).eq("voucher_id", order).count();
+        int count = this.query().eq("user_Id", userId).eq("voucher_id", order.getVoucherId()).count();
         if (count > 0) {
             log.error("每人限购一件");
+            return;
         }
         // TODO 库存-1
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock -1")
-                .eq("voucher_id", order)
+                .eq("voucher_id", order.getVoucherId())
                 .gt("stock", 0).update();
         if (!success) {
             log.error("卖光了！");
+            return;
         }
         // TODO 创建订单对象
         super.save(order);
@@ -372,25 +454,174 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckillVoucherWithMQ(Long voucherId) {
+        // TODO 检查优惠券是否存在 是否在秒杀时间内 是否已经卖完 不通过的请求不执行Lua脚本
+        String error = checkSeckill(voucherId);
+        if (error != null) {
+            return Result.fail(error);
+        }
         Long orderId = redisIdWorker.nextId("order");
-        // TODO 执行Lua脚本 脚本内容是判断购买资格 如果有资格就将订单信息保存到消息队列
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                UserHolder.getUser().getId().toString(),
-                String.valueOf(orderId)
-        );
+        Long userId = UserHolder.getUser().getId();
+        int r;
+        if (seckillStockBuckets.bucketCount(voucherId) > 1) {
+            // TODO 库存分桶的优惠券没有seckill:stock:<id> 由SeckillStockBuckets扣减库存后再写入消息队列
+            r = seckillStockBuckets.tryAcquire(voucherId, userId);
+            if (r == 0) {
+                sendOrderMessage(orderId, userId, voucherId);
+            }
+        } else {
+            // TODO 执行Lua脚本 脚本内容是判断购买资格 如果有资格就将订单信息保存到消息队列
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT_WITH_MQ,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId)
+            );
+            r = result.intValue();
+        }
         // TODO 判断结果
         // 如果不是0 返回错误信息
-        int r = result.intValue();
+        if (r == 1) {
+            markSoldOut(voucherId);
+        }
         if (r != 0) {
             // 下单失败
             return Result.fail(r == 1 ? "库存不足" : "一个用户只能下一单");
         }
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         // TODO 返回订单ID
         return Result.ok(orderId);
     }
 
+    /**
+     * 库存分桶的优惠券扣减库存后写入消息队列 写入失败时回滚扣减
+     */
+    private void sendOrderMessage(Long orderId, Long userId, Long voucherId) {
+        Map<String, String> message = new HashMap<>(4);
+        message.put("userId", userId.toString());
+        message.put("voucherId", voucherId.toString());
+        message.put("id", orderId.toString());
+        try {
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_STREAM, message);
+        } catch (RuntimeException e) {
+            seckillStockBuckets.release(voucherId, userId);
+            throw e;
+        }
+    }
+
+    /**
+     * 秒杀前的检查 只读取本地内存 不访问Redis和数据库
+     *
+     * @param voucherId
+     * @return 不能秒杀的原因 可以秒杀时返回null
+     */
+    @Override
+    public String checkSeckill(Long voucherId) {
+        switch (seckillVoucherService.checkTime(voucherId)) {
+            case ISeckillVoucherService.SECKILL_UNKNOWN:
+                return "优惠券不存在";
+            case ISeckillVoucherService.SECKILL_NOT_BEGIN:
+                return "秒杀还没有开始";
+            case ISeckillVoucherService.SECKILL_ENDED:
+                return "秒杀已经结束";
+            default:
+                return isSoldOut(voucherId) ? "库存不足" : null;
+        }
+    }
+
+    /**
+     * 判断优惠券是否已经卖完 只查询本地内存
+     *
+     * @param voucherId
+     * @return
+     */
+    @Override
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOutVouchers.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt > System.currentTimeMillis()) {
+            return true;
+        }
+        soldOutVouchers.remove(voucherId, expireAt);
+        return false;
+    }
+
+    /**
+     * 标记优惠券已经卖完 并通知其他节点
+     *
+     * @param voucherId
+     */
+    @Override
+    public void markSoldOut(Long voucherId) {
+        applySoldOut(voucherId, true);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 优惠券补充库存后清除卖完标记 并通知其他节点
+     *
+     * @param voucherId
+     */
+    @Override
+    public void clearSoldOut(Long voucherId) {
+        applySoldOut(voucherId, false);
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 只修改本节点的卖完标记 收到其他节点的通知时调用
+     *
+     * @param voucherId
+     * @param soldOut
+     */
+    @Override
+    public void applySoldOut(Long voucherId, boolean soldOut) {
+        if (soldOut) {
+            soldOutVouchers.put(voucherId, System.currentTimeMillis() + soldOutTtl);
+        } else {
+            soldOutVouchers.remove(voucherId);
+        }
+    }
+
+    /**
+     * 批量写入一批订单 消息队列的消费者调用
+     * 消息可能被重复投递 已经写入过的订单直接跳过 同一个优惠券的库存只扣减一次
+     * 数据库库存不足时抛出异常 整批回滚，不会写入没有库存的订单
+     *
+     * @param orders
+     */
+    @Transactional
+    @Override
+    public void saveOrderBatch(List<VoucherOrder> orders) {
+        // TODO 一次IN查询过滤掉已经存在的订单 保证幂等
+        List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> existIds = query().select("id").in("id", ids).list()
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        Map<Long, VoucherOrder> newOrders = new LinkedHashMap<>();
+        for (VoucherOrder order : orders) {
+            if (!existIds.contains(order.getId())) {
+                newOrders.putIfAbsent(order.getId(), order);
+            }
+        }
+        if (newOrders.isEmpty()) {
+            return;
+        }
+        // TODO 按优惠券汇总 每个优惠券执行一次库存扣减 按优惠券ID的顺序加行锁 避免多个写库线程互相死锁
+        Map<Long, Long> counts = newOrders.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.counting()));
+        counts.forEach((voucherId, n) -> {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + n)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", n).update();
+            if (!success) {
+                // Redis中已经扣减过库存 数据库库存不足说明两边数据不一致
+                // 抛出异常回滚整批 调用方改为逐条写入，库存不足的订单不会写入数据库
+                throw new IllegalStateException("扣减库存失败 voucherId=" + voucherId + " count=" + n);
+            }
+        });
+        // TODO 库存扣减成功后 多行INSERT写入订单
+        getBaseMapper().insertBatch(new ArrayList<>(newOrders.values()));
+    }
 }
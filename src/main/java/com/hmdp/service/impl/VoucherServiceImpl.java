@@ -6,16 +6,19 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStockBuckets;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  * 服务实现类
@@ -31,6 +34,14 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockBuckets seckillStockBuckets;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    // 秒杀库存默认的分桶数 1表示不分桶
+    @Value("${hmdp.seckill.stock-buckets:1}")
+    private int defaultStockBuckets = 1;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -52,7 +63,54 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 事务提交后再预热和初始化库存 回滚时不会留下数据库中不存在的秒杀券
+        int buckets = voucher.getStockBuckets() != null ? voucher.getStockBuckets() : defaultStockBuckets;
+        afterCommit(() -> warmUpSeckillVoucher(seckillVoucher, buckets));
+    }
+
+    private void warmUpSeckillVoucher(SeckillVoucher seckillVoucher, int buckets) {
+        // 保存秒杀库存到Redis中 热门优惠券可以把库存拆分到多个分桶
+        seckillStockBuckets.init(seckillVoucher.getVoucherId(), seckillVoucher.getStock(), buckets);
+        // 预热所有节点内存中的秒杀时间
+        seckillVoucherService.cacheVoucher(seckillVoucher);
+    }
+
+    /**
+     * 秒杀券补充库存 同时清除所有节点的卖完标记
+     *
+     * @param voucherId
+     * @param count
+     */
+    @Override
+    @Transactional
+    public void addSeckillStock(Long voucherId, Integer count) {
+        // 补充数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId).update();
+        if (!success) {
+            throw new RuntimeException("秒杀券不存在");
+        }
+        // 事务提交后再补充Redis库存 回滚时Redis库存不会多于数据库 避免超卖
+        afterCommit(() -> {
+            seckillStockBuckets.addStock(voucherId, count);
+            voucherOrderService.clearSoldOut(voucherId);
+        });
+    }
+
+    /**
+     * 在当前事务提交后执行 没有事务时直接执行
+     */
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
     }
 }
@@ -0,0 +1,352 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 紧凑的二进制序列化 Shop、ShopType、UserDTO使用手写的编解码器 其他类型仍然使用JSON
+ * 序列化结果超过阈值时使用LZ4压缩
+ * <p>
+ * 格式：第一个字节是格式标记
+ * FORMAT_BINARY 后面是编解码器ID和对象内容
+ * FORMAT_LZ4    后面是压缩前的长度和压缩后的内容 解压后仍然是以格式标记开头的数据
+ * FORMAT_NULL   只有这一个字节 表示null 逻辑过期的缓存重建时数据库中的记录可能已经删除
+ * 其他          JSON 兼容之前保存在Redis中的JSON数据
+ */
+public class BinaryCacheSerializer implements CacheSerializer {
+    private static final byte FORMAT_BINARY = (byte) 0xB1;
+    private static final byte FORMAT_LZ4 = (byte) 0xB2;
+    private static final byte FORMAT_NULL = (byte) 0xB0;
+    private static final byte[] NULL_BYTES = {FORMAT_NULL};
+    // 列表的编解码器ID 后面是元素的编解码器ID、元素个数和每个元素的内容
+    private static final byte LIST_CODEC_ID = 0;
+
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private final JsonCacheSerializer jsonSerializer = new JsonCacheSerializer();
+    private final Map<Class<?>, Byte> codecIds = new HashMap<>();
+    private final BinaryCodec<?>[] codecs = new BinaryCodec<?>[128];
+    // 超过该长度(字节)的数据进行压缩
+    private final int compressThreshold;
+
+    public BinaryCacheSerializer(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+        // 编解码器ID一旦使用就不能修改 字段有变化时应注册新的ID
+        register(1, Shop.class, new ShopCodec());
+        register(2, ShopType.class, new ShopTypeCodec());
+        register(3, UserDTO.class, new UserDTOCodec());
+    }
+
+    private <T> void register(int id, Class<T> type, BinaryCodec<T> codec) {
+        codecIds.put(type, (byte) id);
+        codecs[id] = codec;
+    }
+
+    @Override
+    public byte[] serialize(Object value) {
+        if (value == null) {
+            return NULL_BYTES.clone();
+        }
+        byte[] bytes = encode(value);
+        if (bytes == null) {
+            // 没有对应的编解码器 使用JSON
+            bytes = jsonSerializer.serialize(value);
+        }
+        return bytes.length > compressThreshold ? compress(bytes) : bytes;
+    }
+
+    @Override
+    public <T> T deserialize(byte[] bytes, int offset, int length, Class<T> type) {
+        if (length == 1 && bytes[offset] == FORMAT_NULL) {
+            return null;
+        }
+        if (length > 0 && bytes[offset] == FORMAT_LZ4) {
+            byte[] raw = decompress(bytes, offset, length);
+            return deserialize(raw, 0, raw.length, type);
+        }
+        if (length == 0 || bytes[offset] != FORMAT_BINARY) {
+            return jsonSerializer.deserialize(bytes, offset, length, type);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset + 1, length - 1));
+            return type.cast(codec(in.readByte()).read(in));
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存数据反序列化失败", e);
+        }
+    }
+
+    @Override
+    public <T> List<T> deserializeList(byte[] bytes, Class<T> elementType) {
+        if (bytes.length == 1 && bytes[0] == FORMAT_NULL) {
+            return null;
+        }
+        if (bytes.length > 0 && bytes[0] == FORMAT_LZ4) {
+            return deserializeList(decompress(bytes, 0, bytes.length), elementType);
+        }
+        if (bytes.length == 0 || bytes[0] != FORMAT_BINARY) {
+            return jsonSerializer.deserializeList(bytes, elementType);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+            if (in.readByte() != LIST_CODEC_ID) {
+                throw new IllegalStateException("缓存数据不是列表");
+            }
+            BinaryCodec<?> codec = codec(in.readByte());
+            int size = in.readInt();
+            List<T> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(elementType.cast(codec.read(in)));
+            }
+            return list;
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存数据反序列化失败", e);
+        }
+    }
+
+    /**
+     * 使用二进制编解码器序列化 没有对应的编解码器时返回null
+     */
+    @SuppressWarnings("unchecked")
+    private byte[] encode(Object value) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeByte(FORMAT_BINARY);
+            if (value instanceof List) {
+                List<Object> list = (List<Object>) value;
+                Byte id = list.isEmpty() ? null : codecIds.get(list.get(0).getClass());
+                if (id == null) {
+                    return null;
+                }
+                BinaryCodec<Object> codec = (BinaryCodec<Object>) codecs[id];
+                out.writeByte(LIST_CODEC_ID);
+                out.writeByte(id);
+                out.writeInt(list.size());
+                for (Object element : list) {
+                    if (element == null || element.getClass() != list.get(0).getClass()) {
+                        return null;
+                    }
+                    codec.write(out, element);
+                }
+            } else {
+                Byte id = codecIds.get(value.getClass());
+                if (id == null) {
+                    return null;
+                }
+                out.writeByte(id);
+                ((BinaryCodec<Object>) codecs[id]).write(out, value);
+            }
+            out.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存数据序列化失败", e);
+        }
+    }
+
+    private BinaryCodec<?> codec(byte id) {
+        BinaryCodec<?> codec = id > 0 ? codecs[id] : null;
+        if (codec == null) {
+            throw new IllegalStateException("未知的编解码器ID: " + id);
+        }
+        return codec;
+    }
+
+    private static byte[] compress(byte[] raw) {
+        byte[] compressed = new byte[5 + COMPRESSOR.maxCompressedLength(raw.length)];
+        compressed[0] = FORMAT_LZ4;
+        writeInt(compressed, 1, raw.length);
+        int length = COMPRESSOR.compress(raw, 0, raw.length, compressed, 5);
+        byte[] result = new byte[5 + length];
+        System.arraycopy(compressed, 0, result, 0, result.length);
+        return result;
+    }
+
+    private static byte[] decompress(byte[] bytes, int offset, int length) {
+        int rawLength = ((bytes[offset + 1] & 0xFF) << 24) | ((bytes[offset + 2] & 0xFF) << 16)
+                | ((bytes[offset + 3] & 0xFF) << 8) | (bytes[offset + 4] & 0xFF);
+        byte[] raw = new byte[rawLength];
+        DECOMPRESSOR.decompress(bytes, offset + 5, raw, 0, rawLength);
+        return raw;
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * 单个类型的编解码器 按固定顺序读写字段
+     */
+    private interface BinaryCodec<T> {
+        void write(DataOutputStream out, T value) throws IOException;
+
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private static class ShopCodec implements BinaryCodec<Shop> {
+        @Override
+        public void write(DataOutputStream out, Shop shop) throws IOException {
+            writeLong(out, shop.getId());
+            writeString(out, shop.getName());
+            writeLong(out, shop.getTypeId());
+            writeString(out, shop.getImages());
+            writeString(out, shop.getArea());
+            writeString(out, shop.getAddress());
+            writeDouble(out, shop.getX());
+            writeDouble(out, shop.getY());
+            writeLong(out, shop.getAvgPrice());
+            writeInt(out, shop.getSold());
+            writeInt(out, shop.getComments());
+            writeInt(out, shop.getScore());
+            writeString(out, shop.getOpenHours());
+            writeDateTime(out, shop.getCreateTime());
+            writeDateTime(out, shop.getUpdateTime());
+        }
+
+        @Override
+        public Shop read(DataInputStream in) throws IOException {
+            Shop shop = new Shop();
+            shop.setId(readLong(in));
+            shop.setName(readString(in));
+            shop.setTypeId(readLong(in));
+            shop.setImages(readString(in));
+            shop.setArea(readString(in));
+            shop.setAddress(readString(in));
+            shop.setX(readDouble(in));
+            shop.setY(readDouble(in));
+            shop.setAvgPrice(readLong(in));
+            shop.setSold(readInt(in));
+            shop.setComments(readInt(in));
+            shop.setScore(readInt(in));
+            shop.setOpenHours(readString(in));
+            shop.setCreateTime(readDateTime(in));
+            shop.setUpdateTime(readDateTime(in));
+            return shop;
+        }
+    }
+
+    private static class ShopTypeCodec implements BinaryCodec<ShopType> {
+        @Override
+        public void write(DataOutputStream out, ShopType shopType) throws IOException {
+            writeLong(out, shopType.getId());
+            writeString(out, shopType.getName());
+            writeString(out, shopType.getIcon());
+            writeInt(out, shopType.getSort());
+            writeDateTime(out, shopType.getCreateTime());
+            writeDateTime(out, shopType.getUpdateTime());
+        }
+
+        @Override
+        public ShopType read(DataInputStream in) throws IOException {
+            ShopType shopType = new ShopType();
+            shopType.setId(readLong(in));
+            shopType.setName(readString(in));
+            shopType.setIcon(readString(in));
+            shopType.setSort(readInt(in));
+            shopType.setCreateTime(readDateTime(in));
+            shopType.setUpdateTime(readDateTime(in));
+            return shopType;
+        }
+    }
+
+    private static class UserDTOCodec implements BinaryCodec<UserDTO> {
+        @Override
+        public void write(DataOutputStream out, UserDTO user) throws IOException {
+            writeLong(out, user.getId());
+            writeString(out, user.getNickName());
+            writeString(out, user.getIcon());
+        }
+
+        @Override
+        public UserDTO read(DataInputStream in) throws IOException {
+            UserDTO user = new UserDTO();
+            user.setId(readLong(in));
+            user.setNickName(readString(in));
+            user.setIcon(readString(in));
+            return user;
+        }
+    }
+
+    // 以下方法读写可以为null的字段 先写一个字节表示是否为null
+
+    private static void writeLong(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static Long readLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    private static void writeInt(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+    private static Integer readInt(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+    private static void writeDouble(DataOutputStream out, Double value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static Double readDouble(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readDouble() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeDateTime(DataOutputStream out, LocalDateTime value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(value.getNano());
+        }
+    }
+
+    private static LocalDateTime readDateTime(DataInputStream in) throws IOException {
+        return in.readBoolean() ? LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC) : null;
+    }
+}
@@ -1,18 +1,23 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Function;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -20,6 +25,8 @@ import static com.hmdp.utils.RedisConstants.*;
 /**
  * Redis工具类，用来实现对redis中的查询和写入
  * 提供解决缓存穿透和缓存击穿的方法
+ * 在Redis之前还有一层本地缓存(Caffeine)，热点数据命中本地缓存时不需要访问Redis也不需要反序列化
+ * 对象写入Redis时的格式由CacheSerializer决定，长度为0的值表示缓存的空对象
  */
 @Component
 @Slf4j
@@ -27,14 +34,59 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
+    private final CacheSerializer serializer;
+
     public static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
-    public CacheClient(StringRedisTemplate redisTemplate) {
+    // 本地一级缓存 key与Redis中的key相同 只保存非空对象
+    private final Cache<String, Object> localCache = Caffeine.newBuilder()
+            .maximumSize(CACHE_LOCAL_MAX_SIZE)
+            .expireAfterWrite(CACHE_LOCAL_TTL, TimeUnit.SECONDS)
+            .build();
+
+    // 本节点正在进行的缓存重建 同一个key的并发请求共享同一个结果
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    // 各个key前缀对应的布隆过滤器 用于拦截数据库中不存在的ID
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate redisTemplate, CacheSerializer serializer) {
         this.stringRedisTemplate = redisTemplate;
+        this.serializer = serializer;
     }
 
     /**
-     * 将任意Java类型的数据序列化成JSON并存储在String类型的key中，并可以设置TTL时间
+     * 删除缓存 同时通过Redis的发布订阅通知所有节点清除本地缓存
+     *
+     * @param key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 为指定的key前缀注册布隆过滤器 查询缓存未命中时先判断ID是否可能存在
+     *
+     * @param keyPrefix
+     * @param bloomFilter
+     */
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    /**
+     * 清除本节点的本地缓存 由订阅了CACHE_INVALIDATE_CHANNEL的监听器调用
+     *
+     * @param key
+     */
+    public void evictLocal(String key) {
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 将任意Java类型的数据序列化并存储在String类型的key中，并可以设置TTL时间
      *
      * @param key
      * @param value
@@ -42,11 +94,43 @@ public class CacheClient {
      * @param timeUnit
      */
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        setRaw(key, serializer.serialize(value), Expiration.from(time, timeUnit));
     }
 
     /**
-     * 将任意Java类型的数据序列化成JSON并存储在String类型的key中，并可以设置逻辑过期时间，用于解决缓存击穿的问题
+     * 将任意Java类型的数据序列化并存储在String类型的key中，不设置TTL时间
+     *
+     * @param key
+     * @param value
+     */
+    public void set(String key, Object value) {
+        setRaw(key, serializer.serialize(value), Expiration.persistent());
+    }
+
+    /**
+     * 查询以列表形式保存的缓存
+     *
+     * @param key
+     * @param elementType
+     * @param <R>
+     * @return 缓存不存在或者无法解析时返回null
+     */
+    public <R> List<R> getList(String key, Class<R> elementType) {
+        byte[] bytes = getRaw(key);
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try {
+            return serializer.deserializeList(bytes, elementType);
+        } catch (Exception e) {
+            log.warn("缓存数据解析失败 key={}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * 将任意Java类型的数据序列化并存储在String类型的key中，并可以设置逻辑过期时间，用于解决缓存击穿的问题
+     * 保存的格式为 8字节的逻辑过期时间(毫秒时间戳) + 序列化后的对象 读取时只需要解析一次
      *
      * @param key
      * @param value
@@ -54,10 +138,11 @@ public class CacheClient {
      * @param timeUnit
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData), time, timeUnit);
+        byte[] data = serializer.serialize(value);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + data.length);
+        buffer.putLong(System.currentTimeMillis() + timeUnit.toMillis(time));
+        buffer.put(data);
+        setRaw(key, buffer.array(), Expiration.from(time, timeUnit));
     }
 
     /**
@@ -74,27 +159,120 @@ public class CacheClient {
      * @return
      */
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
-        // TODO 首先根据ID查询Redis
+        // TODO 首先查询本地缓存 然后根据ID查询Redis
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        R local = getLocal(key, type);
+        if (local != null) {
+            return local;
+        }
+        byte[] bytes = getRaw(key);
         // TODO 如果查询到，判断是否为空对象，如果为空对象 则返回null
-        if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json, type);
+        if (bytes != null && bytes.length == 0) {
+            return null;
         }
         // TODO 如果查询到，且不为空对象，则直接返回该对象
-        if (Objects.equals(json, "")) {
+        R cached = decode(key, bytes, type);
+        if (cached != null) {
+            return putLocal(key, cached);
+        }
+        // TODO 如果查询不到，先用布隆过滤器判断ID是否存在 一定不存在的ID不查数据库也不写入空对象
+        if (!mightExist(keyPrefix, id)) {
             return null;
         }
-        // TODO 如果查询不到，则去数据库查询
+        // TODO 如果可能存在，则去数据库查询
         R r = dbFallback.apply(id);
         // TODO 如果在数据库中查询不到，则返回空对象，并设置空对象的过期时间
         if (r == null) {
-            this.set(key, "", time, timeUnit);
+            this.setNull(key, time, timeUnit);
             return null;
         }
         // TODO 如果查询到，则将该对象保存到Redis中，并返回该对象 对象保存30分钟
-        this.set(key, JSONUtil.toJsonStr(r), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        return r;
+        this.set(key, r, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return putLocal(key, r);
+    }
+
+    /**
+     * 批量查询缓存，用于列表页面
+     * 先查本地缓存，再用一次MGET查询Redis，未命中的ID通过一次IN查询到数据库中查找，最后用一次pipeline写回Redis
+     *
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param dbFallback 根据未命中的ID批量查询数据库 返回ID到对象的映射
+     * @param time
+     * @param timeUnit
+     * @param <R>
+     * @param <ID>
+     * @return 按照ids的顺序排列的ID到对象的映射 不存在的ID不会出现在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type, Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit timeUnit) {
+        Map<ID, R> found = new HashMap<>(ids.size());
+        // TODO 1.查询本地缓存
+        Set<ID> remoteIdSet = new LinkedHashSet<>(ids.size());
+        for (ID id : ids) {
+            R local = getLocal(keyPrefix + id, type);
+            if (local != null) {
+                found.put(id, local);
+            } else {
+                remoteIdSet.add(id);
+            }
+        }
+        List<ID> remoteIds = new ArrayList<>(remoteIdSet);
+        // TODO 2.用一次MGET查询Redis
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            byte[][] rawKeys = new byte[remoteIds.size()][];
+            for (int i = 0; i < rawKeys.length; i++) {
+                rawKeys[i] = rawKey(keyPrefix + remoteIds.get(i));
+            }
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+            for (int i = 0; i < remoteIds.size(); i++) {
+                byte[] bytes = values == null ? null : values.get(i);
+                if (bytes != null && bytes.length == 0) {
+                    // 缓存的空对象 不需要再查数据库
+                    continue;
+                }
+                String key = keyPrefix + remoteIds.get(i);
+                R cached = decode(key, bytes, type);
+                if (cached != null) {
+                    found.put(remoteIds.get(i), putLocal(key, cached));
+                } else {
+                    missIds.add(remoteIds.get(i));
+                }
+            }
+        }
+        // TODO 3.未命中的ID一次性查询数据库 并用一次pipeline写回Redis 数据库中不存在的ID写入空对象
+        if (!missIds.isEmpty()) {
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            Expiration expiration = Expiration.from(time, timeUnit);
+            Expiration nullExpiration = Expiration.from(CACHE_NULL_TTL, TimeUnit.SECONDS);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    R r = loaded.get(id);
+                    if (r == null) {
+                        connection.set(rawKey(keyPrefix + id), new byte[0], nullExpiration, RedisStringCommands.SetOption.upsert());
+                    } else {
+                        connection.set(rawKey(keyPrefix + id), serializer.serialize(r), expiration, RedisStringCommands.SetOption.upsert());
+                    }
+                }
+                return null;
+            });
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                if (r != null) {
+                    found.put(id, putLocal(keyPrefix + id, r));
+                }
+            }
+        }
+        // TODO 4.按照传入的顺序返回结果
+        Map<ID, R> result = new LinkedHashMap<>(found.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
     }
 
     /**
@@ -113,16 +291,32 @@ public class CacheClient {
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit, String lockKeyPrefix) {
         // TODO 根据ID到redis中查询数据
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
         // TODO 如果查询不到，则直接返回空
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length <= 8) {
             return null;
         }
         // TODO 如果查询到，判断是否过期 如果没有过期，则直接返回
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        long expireTime;
+        R r;
+        try {
+            if (bytes[0] == '{') {
+                // 升级前写入的RedisData JSON {"data":..., "expireTime":...} 过期后重建时会改写成新的格式
+                // 新格式的前8字节是毫秒时间戳 第一个字节是0 不会与'{'混淆
+                JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+                LocalDateTime legacyExpireTime = json.getLocalDateTime("expireTime", null);
+                expireTime = legacyExpireTime == null ? 0L : legacyExpireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                JSONObject data = json.getJSONObject("data");
+                r = data == null ? null : JSONUtil.toBean(data, type);
+            } else {
+                expireTime = ByteBuffer.wrap(bytes, 0, 8).getLong();
+                r = serializer.deserialize(bytes, 8, bytes.length - 8, type);
+            }
+        } catch (Exception e) {
+            log.warn("缓存数据解析失败 key={}", key, e);
+            return null;
+        }
+        if (expireTime > System.currentTimeMillis()) {
             return r;
         }
         // TODO 如果已经过期，则尝试获取锁 如果获取到，则创建新的线程来重建数据
@@ -160,41 +354,217 @@ public class CacheClient {
      * @return
      */
     public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit, String lockKeyPrefix) {
-        // TODO 1.根据ID到Redis中去查询数据
-        String json = stringRedisTemplate.opsForValue().get(keyPrefix + id);
-        // TODO 2.如果查到了且不是空数据 则直接返回 isNotBlack ""返回false
-        if (StrUtil.isNotBlank(json)) {
-            // 将Json转化成对象返回
-            return JSONUtil.toBean(json, type);
-        }
-        // TODO 3.判断redis中存储的是否是空对象 如果是空数据 返回错误信息
-        if ("".equals(json)) {
+        // TODO 1.先查本地缓存 再根据ID到Redis中去查询数据
+        R local = getLocal(keyPrefix + id, type);
+        if (local != null) {
+            return local;
+        }
+        byte[] bytes = getRaw(keyPrefix + id);
+        // TODO 2.判断redis中存储的是否是空对象 如果是空数据 返回错误信息
+        if (bytes != null && bytes.length == 0) {
+            return null;
+        }
+        // TODO 3.如果查到了且不是空数据 则反序列化后返回 同时放入本地缓存
+        R cached = decode(keyPrefix + id, bytes, type);
+        if (cached != null) {
+            return putLocal(keyPrefix + id, cached);
+        }
+        // TODO 4.如果没查到 先用布隆过滤器判断ID是否存在
+        if (!mightExist(keyPrefix, id)) {
             return null;
         }
-        // TODO 4.如果没查到 则去获取锁，如果获取到锁，则查询数据库重建缓存，如果没有获取到锁，则等待后重新到缓存查询
-        R r = null;
+        // TODO 5.如果可能存在 则合并本节点对同一个key的并发请求 只有一个线程去重建缓存 其他线程等待它的结果
+        String key = keyPrefix + id;
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> loading = inFlightLoads.putIfAbsent(key, future);
+        if (loading != null) {
+            return awaitLoad(loading, key, type);
+        }
         try {
-            if (!tryLock(keyPrefix + id)) {
-                // 如果没有获取到锁，那么线程等待后重新调用该方法
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, timeUnit, lockKeyPrefix);
-            }
-            // TODO 5.如果获取到锁，则去数据库查询
-            r = dbFallback.apply(id);
-            // TODO 6.数据库中如果没查到，则创建一个空对象存储到redis中
-            if (r == null) {
-                this.set(keyPrefix + id, "", time, timeUnit);
-                return null;
+            R r = loadWithMutex(key, lockKeyPrefix + id, id, type, dbFallback, time, timeUnit);
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
+    }
+
+    /**
+     * 等待本节点上正在进行的缓存重建
+     * 超时后不能各自去查询数据库 否则重建慢的时候所有等待的线程会同时打到数据库上 只打印警告然后继续等待同一个结果
+     * 重建线程自身的等待次数是有限的 最终一定会完成 重建失败时把异常抛给等待的线程
+     *
+     * @param loading
+     * @param key
+     * @param type
+     * @param <R>
+     * @return
+     */
+    private <R> R awaitLoad(CompletableFuture<Object> loading, String key, Class<R> type) {
+        try {
+            try {
+                return type.cast(loading.get(CACHE_LOAD_WAIT_TIMEOUT, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                log.warn("等待缓存重建超过{}ms，继续等待 key={}", CACHE_LOAD_WAIT_TIMEOUT, key);
+                return type.cast(loading.get());
             }
-            // TODO 7.数据库中如果查到了，则将结果保存到Redis中
-            this.set(keyPrefix + id, JSONUtil.toJsonStr(r), time, timeUnit);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        } finally {
-            // TODO 8.释放锁
-            unlock(keyPrefix + id);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
         }
-        return r;
+    }
+
+    /**
+     * 利用Redis互斥锁在多个节点之间协调缓存重建
+     * 获取锁失败说明其他节点正在重建 短暂等待后重新查询Redis 重试次数有限 仍然失败则直接查询数据库
+     *
+     * @param key
+     * @param lockKey
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param timeUnit
+     * @param <R>
+     * @param <ID>
+     * @return
+     */
+    private <R, ID> R loadWithMutex(String key, String lockKey, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        for (int i = 0; i < CACHE_LOCK_RETRY_TIMES; i++) {
+            if (tryLock(lockKey)) {
+                try {
+                    // TODO 6.获取到锁后再查一次Redis 其他节点可能刚刚重建完成
+                    R cached = decode(key, getRaw(key), type);
+                    if (cached != null) {
+                        return putLocal(key, cached);
+                    }
+                    // TODO 7.去数据库查询 数据库中如果没查到，则创建一个空对象存储到redis中
+                    R r = dbFallback.apply(id);
+                    if (r == null) {
+                        this.setNull(key, time, timeUnit);
+                        return null;
+                    }
+                    // TODO 8.数据库中如果查到了，则将结果保存到Redis中
+                    this.set(key, r, time, timeUnit);
+                    return putLocal(key, r);
+                } finally {
+                    // TODO 9.释放锁
+                    unlock(lockKey);
+                }
+            }
+            // 没有获取到锁 等待其他节点重建完成后重新查询Redis
+            try {
+                Thread.sleep(CACHE_LOCK_RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            byte[] bytes = getRaw(key);
+            if (bytes != null && bytes.length == 0) {
+                return null;
+            }
+            R cached = decode(key, bytes, type);
+            if (cached != null) {
+                return putLocal(key, cached);
+            }
+        }
+        // 等待超过重试次数 不再等待 直接查询数据库
+        return dbFallback.apply(id);
+    }
+
+    /**
+     * 写入空对象 用于解决缓存穿透
+     *
+     * @param key
+     * @param time
+     * @param timeUnit
+     */
+    private void setNull(String key, Long time, TimeUnit timeUnit) {
+        setRaw(key, new byte[0], Expiration.from(time, timeUnit));
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    private void setRaw(String key, byte[] value, Expiration expiration) {
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey(key), value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 反序列化Redis中保存的对象 数据不存在或者无法解析(例如序列化格式发生变化)时返回null 按照未命中处理
+     *
+     * @param key
+     * @param bytes
+     * @param type
+     * @param <R>
+     * @return
+     */
+    private <R> R decode(String key, byte[] bytes, Class<R> type) {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        try {
+            return serializer.deserialize(bytes, type);
+        } catch (Exception e) {
+            log.warn("缓存数据解析失败 key={}", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * 判断ID是否可能存在 没有注册布隆过滤器的key前缀一律认为可能存在
+     *
+     * @param keyPrefix
+     * @param id
+     * @param <ID>
+     * @return
+     */
+    private <ID> boolean mightExist(String keyPrefix, ID id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || bloomFilter.mightContain(id);
+    }
+
+    /**
+     * 从本地缓存中获取对象 类型不匹配时视为未命中
+     *
+     * @param key
+     * @param type
+     * @param <R>
+     * @return
+     */
+    private <R> R getLocal(String key, Class<R> type) {
+        Object value = localCache.getIfPresent(key);
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    /**
+     * 将对象放入本地缓存并返回该对象
+     *
+     * @param key
+     * @param value
+     * @param <R>
+     * @return
+     */
+    private <R> R putLocal(String key, R value) {
+        if (value != null) {
+            localCache.put(key, value);
+        }
+        return value;
     }
 
     /**
@@ -204,7 +574,7 @@ public class CacheClient {
      * @return
      */
     private boolean tryLock(String key) {
-        Boolean lock = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_SHOP_KEY + key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        Boolean lock = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(lock);
     }
 
@@ -214,7 +584,7 @@ public class CacheClient {
      * @param key
      */
     private void unlock(String key) {
-        stringRedisTemplate.delete(LOCK_SHOP_KEY + key);
+        stringRedisTemplate.delete(key);
     }
 
 }
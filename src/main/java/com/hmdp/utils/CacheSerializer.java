@@ -0,0 +1,19 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ * 缓存对象的序列化接口 CacheClient通过它把对象写入Redis以及从Redis中读取对象
+ */
+public interface CacheSerializer {
+
+    byte[] serialize(Object value);
+
+    <T> T deserialize(byte[] bytes, int offset, int length, Class<T> type);
+
+    <T> List<T> deserializeList(byte[] bytes, Class<T> elementType);
+
+    default <T> T deserialize(byte[] bytes, Class<T> type) {
+        return deserialize(bytes, 0, bytes.length, type);
+    }
+}
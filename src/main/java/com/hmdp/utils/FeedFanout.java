@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Follow;
+import com.hmdp.service.IFollowService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 把博文推送到粉丝的收件箱中(写扩散)
+ * 博文提交之后才开始推送 推送在后台线程中进行 不占用数据库事务
+ * 按关注记录ID分页读取粉丝，每页通过一次pipeline执行ZADD并把收件箱裁剪到最大长度
+ * 每推送完一页就把进度记录到Redis中，节点宕机后由其他节点的恢复任务从记录的位置继续推送
+ * ZADD是幂等的 重复推送最后一页不会产生重复数据
+ * 粉丝数达到阈值的作者(大V)不再推送 博文只写入作者自己的发件箱，粉丝读取时再合并(读扩散)
+ * 作者一旦成为大V就一直保持 保证同一个作者的博文不会一部分在收件箱一部分在发件箱之外丢失
+ */
+@Slf4j
+@Component
+public class FeedFanout {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IFollowService followService;
+
+    // 每页读取的粉丝数 也是一次pipeline中的ZADD个数
+    @Value("${hmdp.feed.fanout-page-size:500}")
+    private int pageSize = 500;
+    @Value("${hmdp.feed.fanout-threads:2}")
+    private int fanoutThreads = 2;
+    // 每个收件箱最多保留的博文数 超过时删除最早的博文
+    @Value("${hmdp.feed.inbox-max-size:1000}")
+    private long inboxMaxSize = 1000L;
+    // 粉丝数达到该值的作者改为写发件箱
+    @Value("${hmdp.feed.big-author-threshold:10000}")
+    private long bigAuthorThreshold = 10000L;
+    @Value("${hmdp.feed.outbox-max-size:1000}")
+    private long outboxMaxSize = 1000L;
+
+    private ExecutorService fanoutExecutor;
+
+    @PostConstruct
+    private void init() {
+        fanoutExecutor = Executors.newFixedThreadPool(fanoutThreads);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        // 没有完成的任务保留在Redis中 由恢复任务继续推送
+        fanoutExecutor.shutdownNow();
+    }
+
+    /**
+     * 在当前事务提交后推送博文 没有事务时直接推送
+     *
+     * @param blogId
+     * @param authorId
+     * @param time     博文在收件箱中的分数
+     */
+    public void publish(Long blogId, Long authorId, long time) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    start(blogId, authorId, time);
+                }
+            });
+        } else {
+            start(blogId, authorId, time);
+        }
+    }
+
+    private void start(Long blogId, Long authorId, long time) {
+        if (isBigAuthor(authorId)) {
+            // TODO 大V只写自己的发件箱
+            String key = FEED_OUTBOX_KEY + authorId;
+            stringRedisTemplate.opsForZSet().add(key, blogId.toString(), time);
+            stringRedisTemplate.opsForZSet().removeRange(key, 0, -outboxMaxSize - 1);
+            return;
+        }
+        // TODO 先记录任务再推送 推送线程还没开始时宕机也能恢复
+        stringRedisTemplate.opsForHash().put(FEED_FANOUT_KEY, blogId.toString(), authorId + ":" + time + ":0");
+        submit(blogId.toString());
+    }
+
+    private boolean isBigAuthor(Long authorId) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FEED_BIG_AUTHORS_KEY, authorId.toString()))) {
+            return true;
+        }
+        Integer followers = followService.query().eq("follow_user_id", authorId).count();
+        if (followers < bigAuthorThreshold) {
+            return false;
+        }
+        stringRedisTemplate.opsForSet().add(FEED_BIG_AUTHORS_KEY, authorId.toString());
+        return true;
+    }
+
+    /**
+     * 查询用户关注的大V 读取关注博文时需要合并这些作者的发件箱
+     *
+     * @param userId
+     * @return 大V的用户ID
+     */
+    public Set<String> bigAuthorsFollowedBy(Long userId) {
+        Set<String> authors = stringRedisTemplate.opsForSet().intersect(FOLLOW_LIST_KEY + userId, FEED_BIG_AUTHORS_KEY);
+        return authors == null ? Collections.emptySet() : authors;
+    }
+
+    /**
+     * 定期恢复没有完成的推送任务 租约还有效的任务正在被其他线程推送 会被跳过
+     */
+    @Scheduled(fixedDelayString = "${hmdp.feed.recovery-interval:60000}")
+    public void recover() {
+        try {
+            for (Object blogId : stringRedisTemplate.opsForHash().keys(FEED_FANOUT_KEY)) {
+                submit(blogId.toString());
+            }
+        } catch (Exception e) {
+            log.error("恢复推送任务异常", e);
+        }
+    }
+
+    private void submit(String blogId) {
+        // 拿到租约的线程才能推送这篇博文
+        Boolean leased = stringRedisTemplate.opsForValue()
+                .setIfAbsent(FEED_FANOUT_LEASE_KEY + blogId, "1", FEED_FANOUT_LEASE_TTL, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(leased)) {
+            return;
+        }
+        try {
+            fanoutExecutor.execute(() -> fanout(blogId));
+        } catch (RejectedExecutionException e) {
+            // 节点正在关闭 留给恢复任务
+            stringRedisTemplate.delete(FEED_FANOUT_LEASE_KEY + blogId);
+        }
+    }
+
+    private void fanout(String blogId) {
+        try {
+            Object task = stringRedisTemplate.opsForHash().get(FEED_FANOUT_KEY, blogId);
+            if (task == null) {
+                // 任务已经被其他节点完成
+                return;
+            }
+            List<String> parts = StrUtil.split(task.toString(), ':');
+            Long authorId = Long.valueOf(parts.get(0));
+            long time = Long.parseLong(parts.get(1));
+            long cursor = Long.parseLong(parts.get(2));
+            byte[] rawBlogId = bytes(blogId);
+            while (!Thread.currentThread().isInterrupted()) {
+                // TODO 按关注记录ID分页查询作者的粉丝
+                List<Follow> follows = followService.query()
+                        .select("id", "user_id")
+                        .eq("follow_user_id", authorId)
+                        .gt("id", cursor)
+                        .orderByAsc("id")
+                        .last("limit " + pageSize)
+                        .list();
+                if (follows.isEmpty()) {
+                    stringRedisTemplate.opsForHash().delete(FEED_FANOUT_KEY, blogId);
+                    break;
+                }
+                // TODO 一次pipeline推送一页 并裁剪收件箱
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (Follow follow : follows) {
+                        byte[] key = bytes(FEED_MESSAGEBOX_KEY + follow.getUserId());
+                        connection.zAdd(key, time, rawBlogId);
+                        connection.zRemRange(key, 0, -inboxMaxSize - 1);
+                    }
+                    return null;
+                });
+                // TODO 记录进度并续期租约
+                cursor = follows.get(follows.size() - 1).getId();
+                stringRedisTemplate.opsForHash().put(FEED_FANOUT_KEY, blogId, authorId + ":" + time + ":" + cursor);
+                stringRedisTemplate.expire(FEED_FANOUT_LEASE_KEY + blogId, FEED_FANOUT_LEASE_TTL, TimeUnit.SECONDS);
+                if (follows.size() < pageSize) {
+                    stringRedisTemplate.opsForHash().delete(FEED_FANOUT_KEY, blogId);
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            log.error("推送博文异常 blogId={}", blogId, e);
+        } finally {
+            stringRedisTemplate.delete(FEED_FANOUT_LEASE_KEY + blogId);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
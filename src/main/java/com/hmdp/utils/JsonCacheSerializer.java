@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 使用Hutool JSON序列化缓存对象 与之前直接保存JSON字符串的格式相同
+ */
+public class JsonCacheSerializer implements CacheSerializer {
+    // JSONUtil.toJsonStr(null)返回null 这里用JSON的null表示
+    private static final String NULL_JSON = "null";
+
+    @Override
+    public byte[] serialize(Object value) {
+        String json = value == null ? NULL_JSON : JSONUtil.toJsonStr(value);
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T deserialize(byte[] bytes, int offset, int length, Class<T> type) {
+        String json = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        return NULL_JSON.equals(json) ? null : JSONUtil.toBean(json, type);
+    }
+
+    @Override
+    public <T> List<T> deserializeList(byte[] bytes, Class<T> elementType) {
+        String json = new String(bytes, StandardCharsets.UTF_8);
+        return NULL_JSON.equals(json) ? null : JSONUtil.toList(json, elementType);
+    }
+}
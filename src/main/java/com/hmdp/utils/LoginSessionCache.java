@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.UserDTO;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 登录用户的本地缓存 key为token 保存已经转换好的UserDTO
+ * 命中本地缓存时不需要访问Redis 也不需要通过反射把Map转换成UserDTO
+ * Redis中token的有效期最多每LOGIN_REFRESH_INTERVAL秒续期一次
+ * 退出登录或用户信息修改时通过Redis频道通知所有节点清除本地缓存
+ */
+@Component
+public class LoginSessionCache {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final Cache<String, Session> localCache = Caffeine.newBuilder()
+            .maximumSize(CACHE_LOCAL_MAX_SIZE)
+            .expireAfterWrite(LOGIN_LOCAL_TTL, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * 根据token查询登录用户 并在需要时续期
+     *
+     * @param token
+     * @return 没有登录或登录已过期时返回null
+     */
+    public UserDTO get(String token) {
+        String tokenKey = LOGIN_USER_KEY + token;
+        long now = System.currentTimeMillis();
+        // TODO 1.查询本地缓存
+        Session session = localCache.getIfPresent(token);
+        if (session != null) {
+            // 距离上次续期超过间隔时才续期 同一时间只有一个线程续期
+            long last = session.lastRefresh.get();
+            if (now - last >= TimeUnit.SECONDS.toMillis(LOGIN_REFRESH_INTERVAL)
+                    && session.lastRefresh.compareAndSet(last, now)) {
+                stringRedisTemplate.expire(tokenKey, LOGIN_USER_TTL, TimeUnit.SECONDS);
+            }
+            return session.user;
+        }
+        // TODO 2.查询Redis
+        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(tokenKey);
+        if (userMap.isEmpty()) {
+            return null;
+        }
+        UserDTO user = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+        stringRedisTemplate.expire(tokenKey, LOGIN_USER_TTL, TimeUnit.SECONDS);
+        localCache.put(token, new Session(user, now));
+        return user;
+    }
+
+    /**
+     * 清除所有节点中token的本地缓存 调用方负责修改或删除Redis中的登录信息
+     *
+     * @param token
+     */
+    public void invalidate(String token) {
+        evictLocal(token);
+        stringRedisTemplate.convertAndSend(LOGIN_INVALIDATE_CHANNEL, token);
+    }
+
+    /**
+     * 只清除本节点的本地缓存 收到其他节点的通知时调用
+     *
+     * @param token
+     */
+    public void evictLocal(String token) {
+        localCache.invalidate(token);
+    }
+
+    private static class Session {
+        final UserDTO user;
+        // 上次续期的时间
+        final AtomicLong lastRefresh;
+
+        Session(UserDTO user, long lastRefresh) {
+            this.user = user;
+            this.lastRefresh = new AtomicLong(lastRefresh);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.OrderStreamMetrics;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 恢复消费者组中长时间没有确认的订单消息
+ * 消费者所在的节点宕机后，它的pending-list中的消息不会再被任何消费者读取
+ * 这里定期通过XPENDING找出空闲时间超过阈值的消息(不区分消费者)，XCLAIM到恢复消费者名下后重新写入数据库
+ * 投递次数达到上限的消息不再重试，转入死信队列后确认，等待人工处理
+ * 多个节点同时恢复时XCLAIM的min-idle-time保证同一条消息只会被一个节点认领
+ */
+@Slf4j
+@Component
+public class OrderStreamRecovery {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Value("${hmdp.order.stream.enabled:false}")
+    private boolean streamEnabled = false;
+    @Value("${hmdp.order.stream.batch-size:100}")
+    private int batchSize = 100;
+    // 消息空闲超过该时间(毫秒)才会被认领 需要明显大于一批订单的处理时间
+    @Value("${hmdp.order.stream.min-idle:60000}")
+    private long minIdle = 60000L;
+    // 投递次数达到该值后转入死信队列
+    @Value("${hmdp.order.stream.max-deliveries:5}")
+    private long maxDeliveries = 5L;
+
+    private final String consumerName = ManagementFactory.getRuntimeMXBean().getName() + "-recovery";
+    private final AtomicLong recoveredCount = new AtomicLong();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+
+    @Scheduled(fixedDelayString = "${hmdp.order.stream.recovery-interval:30000}")
+    public void recover() {
+        if (!streamEnabled) {
+            return;
+        }
+        try {
+            // 按消息ID分页扫描整个pending-list 下一页从上一页的最后一条消息开始(包含该消息)
+            Range<String> range = Range.unbounded();
+            String lastId = null;
+            int pageSize = Math.max(batchSize, 2);
+            while (true) {
+                PendingMessages pending = stringRedisTemplate.opsForStream()
+                        .pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, range, pageSize);
+                recoverPage(pending, lastId);
+                if (pending.size() < pageSize) {
+                    break;
+                }
+                lastId = pending.get(pending.size() - 1).getIdAsString();
+                range = Range.rightUnbounded(Range.Bound.inclusive(lastId));
+            }
+        } catch (Exception e) {
+            log.error("恢复pending订单异常", e);
+        }
+    }
+
+    /**
+     * 认领并处理一页中的空闲消息
+     *
+     * @param pending XPENDING返回的一页消息
+     * @param skipId  上一页已经处理过的消息
+     */
+    private void recoverPage(PendingMessages pending, String skipId) {
+        List<RecordId> retryIds = new ArrayList<>();
+        List<RecordId> deadIds = new ArrayList<>();
+        for (PendingMessage message : pending) {
+            if (message.getIdAsString().equals(skipId)
+                    || message.getElapsedTimeSinceLastDelivery().toMillis() < minIdle) {
+                continue;
+            }
+            if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                deadIds.add(message.getId());
+            } else {
+                retryIds.add(message.getId());
+            }
+        }
+        // TODO 1.投递次数超过上限的消息转入死信队列
+        for (MapRecord<String, String, String> record : claim(deadIds)) {
+            Map<String, String> value = new HashMap<>(record.getValue());
+            value.put("originId", record.getId().getValue());
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DEAD_LETTER_STREAM, value);
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, record.getId());
+            deadLetterCount.incrementAndGet();
+            log.error("订单消息投递次数超过上限 转入死信队列 id={} value={}", record.getId(), record.getValue());
+        }
+        // TODO 2.其余消息重新写入数据库
+        replay(claim(retryIds));
+    }
+
+    /**
+     * XCLAIM stream.orders g1 consumerName minIdle ids... 被其他节点抢先认领的消息不会返回
+     */
+    private List<MapRecord<String, String, String>> claim(List<RecordId> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions
+                .minIdle(Duration.ofMillis(minIdle))
+                .ids(ids.toArray(new RecordId[0]));
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8),
+                        SECKILL_ORDER_GROUP, consumerName, options));
+        if (records == null) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, String, String>> result = new ArrayList<>(records.size());
+        for (ByteRecord record : records) {
+            result.add(record.deserialize(stringRedisTemplate.getStringSerializer()));
+        }
+        return result;
+    }
+
+    /**
+     * 先整批写入 失败时逐条写入 避免一条有问题的消息拖住整批
+     * 写入失败的消息留在pending-list中 下次认领时投递次数加一
+     */
+    private void replay(List<MapRecord<String, String, String>> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        RecordId[] recordIds = new RecordId[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            orders.add(BeanUtil.fillBeanWithMap(records.get(i).getValue(), new VoucherOrder(), true));
+            recordIds[i] = records.get(i).getId();
+        }
+        try {
+            voucherOrderService.saveOrderBatch(orders);
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, recordIds);
+            recoveredCount.addAndGet(records.size());
+            return;
+        } catch (Exception e) {
+            log.error("批量恢复订单失败 改为逐条写入", e);
+        }
+        for (int i = 0; i < orders.size(); i++) {
+            try {
+                voucherOrderService.saveOrderBatch(Collections.singletonList(orders.get(i)));
+                stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, recordIds[i]);
+                recoveredCount.incrementAndGet();
+            } catch (Exception e) {
+                log.error("恢复订单失败 id={}", recordIds[i], e);
+            }
+        }
+    }
+
+    /**
+     * 查询消息队列的积压情况
+     *
+     * @return
+     */
+    public OrderStreamMetrics metrics() {
+        OrderStreamMetrics metrics = new OrderStreamMetrics();
+        metrics.setRecoveredCount(recoveredCount.get());
+        metrics.setDeadLetterCount(deadLetterCount.get());
+        metrics.setDeadLetterLength(stringRedisTemplate.opsForStream().size(SECKILL_ORDER_DEAD_LETTER_STREAM));
+        metrics.setStreamLength(stringRedisTemplate.opsForStream().size(SECKILL_ORDER_STREAM));
+        if (metrics.getStreamLength() == null || metrics.getStreamLength() == 0) {
+            return metrics;
+        }
+        StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(SECKILL_ORDER_STREAM).stream()
+                .filter(g -> SECKILL_ORDER_GROUP.equals(g.groupName()))
+                .findFirst().orElse(null);
+        if (group == null) {
+            return metrics;
+        }
+        metrics.setPendingCount(group.pendingCount());
+        metrics.setConsumerCount(group.consumerCount());
+        // 最早一条未确认的消息
+        PendingMessages oldest = stringRedisTemplate.opsForStream()
+                .pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, Range.unbounded(), 1L);
+        metrics.setOldestPendingIdle(oldest.isEmpty() ? 0L : oldest.get(0).getElapsedTimeSinceLastDelivery().toMillis());
+        // 最后投递的消息之后的第一条消息就是最早还没有投递的消息 消息ID的前半部分是写入时间
+        List<MapRecord<String, Object, Object>> next = stringRedisTemplate.opsForStream().range(SECKILL_ORDER_STREAM,
+                Range.rightUnbounded(Range.Bound.inclusive(group.lastDeliveredId())),
+                RedisZSetCommands.Limit.limit().count(2));
+        long lag = 0L;
+        for (MapRecord<String, Object, Object> record : next) {
+            if (!record.getId().getValue().equals(group.lastDeliveredId())) {
+                lag = Math.max(System.currentTimeMillis() - record.getId().getTimestamp(), 0L);
+                break;
+            }
+        }
+        metrics.setDeliveryLag(lag);
+        return metrics;
+    }
+}
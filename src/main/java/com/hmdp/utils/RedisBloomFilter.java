@@ -0,0 +1,135 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 基于Redis位图(bitmap)实现的布隆过滤器，用来解决缓存穿透问题
+ * 位数组长度和哈希函数个数根据预计元素数量和误判率计算
+ * 位数组的最后一位是就绪标记，过滤器还没有构建完成时一律认为元素可能存在，避免误拦截
+ * 重建时RENAME要求临时key与过滤器的key在同一个slot 因此key必须带有hash tag 没有时自动加上
+ */
+public class RedisBloomFilter {
+    // 每一批pipeline写入的元素个数
+    private static final int BATCH_SIZE = 1000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+    // 位数组长度
+    private final long numBits;
+    // 哈希函数个数
+    private final int numHashFunctions;
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key.indexOf('{') >= 0 ? key : "{" + key + "}";
+        // m = -n * ln(p) / (ln2)^2    k = m / n * ln2
+        long n = Math.max(expectedInsertions, 1L);
+        this.numBits = Math.max((long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2))), 64L);
+        this.numHashFunctions = Math.max((int) Math.round((double) numBits / n * Math.log(2)), 1);
+    }
+
+    /**
+     * 添加一个元素
+     *
+     * @param value
+     */
+    public void add(Object value) {
+        byte[] rawKey = rawKey(key);
+        long[] offsets = offsets(value);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            setBits(connection, rawKey, offsets);
+            return null;
+        });
+    }
+
+    /**
+     * 判断元素是否可能存在 返回false时元素一定不存在
+     *
+     * @param value
+     * @return
+     */
+    public boolean mightContain(Object value) {
+        byte[] rawKey = rawKey(key);
+        long[] offsets = offsets(value);
+        List<Object> bits = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            // 第一个结果是就绪标记
+            connection.getBit(rawKey, numBits);
+            for (long offset : offsets) {
+                connection.getBit(rawKey, offset);
+            }
+            return null;
+        });
+        if (!Boolean.TRUE.equals(bits.get(0))) {
+            // 过滤器还没有构建 不做拦截
+            return true;
+        }
+        for (int i = 1; i < bits.size(); i++) {
+            if (!Boolean.TRUE.equals(bits.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 根据全量数据重建过滤器
+     * 先写入临时key，全部写完后再通过RENAME原子替换，读请求不会看到构建了一半的过滤器
+     * 临时key以过滤器的key为前缀 共用同一个hash tag 在Redis集群中也能RENAME
+     *
+     * @param values
+     */
+    public void rebuild(Collection<?> values) {
+        String tmpKey = key + ":tmp:" + UUID.fastUUID().toString(true);
+        byte[] rawTmpKey = rawKey(tmpKey);
+        Object[] array = values.toArray();
+        for (int from = 0; from < array.length; from += BATCH_SIZE) {
+            int start = from;
+            int end = Math.min(from + BATCH_SIZE, array.length);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = start; i < end; i++) {
+                    setBits(connection, rawTmpKey, offsets(array[i]));
+                }
+                return null;
+            });
+        }
+        // 写入就绪标记
+        stringRedisTemplate.opsForValue().setBit(tmpKey, numBits, true);
+        stringRedisTemplate.rename(tmpKey, key);
+    }
+
+    private void setBits(RedisConnection connection, byte[] rawKey, long[] offsets) {
+        for (long offset : offsets) {
+            connection.setBit(rawKey, offset, true);
+        }
+    }
+
+    /**
+     * 使用两个哈希值模拟k个哈希函数 g(i) = h1 + i * h2
+     *
+     * @param value
+     * @return
+     */
+    private long[] offsets(Object value) {
+        long[] hash = MurmurHash.hash128(value.toString());
+        long[] offsets = new long[numHashFunctions];
+        long combined = hash[0];
+        for (int i = 0; i < numHashFunctions; i++) {
+            // 保证非负
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -7,27 +7,91 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 1800L;
+    // 登录用户本地缓存的有效期 以及Redis中token续期的最小间隔(秒)
+    // 本地缓存的有效期必须大于续期间隔 否则本地缓存过期后每次都要重新查询Redis并续期，续期间隔不起作用
+    public static final Long LOGIN_LOCAL_TTL = 600L;
+    public static final Long LOGIN_REFRESH_INTERVAL = 300L;
+    // 登录信息失效的通知频道 消息内容为token
+    public static final String LOGIN_INVALIDATE_CHANNEL = "login:invalidate";
+    // 无状态token模式下已经撤销的token ZSet类型 分数为token的过期时间
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    // token撤销的通知频道 消息内容为token ID
+    public static final String LOGIN_REVOKED_CHANNEL = "login:revoke";
 
     public static final Long CACHE_NULL_TTL = 10L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    // 本地一级缓存(Caffeine)的最大条目数和过期时间(秒)
+    public static final Long CACHE_LOCAL_MAX_SIZE = 10000L;
+    public static final Long CACHE_LOCAL_TTL = 60L;
+    // 用于通知所有节点清除本地缓存的频道
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    // 商铺ID的布隆过滤器 使用hash tag 重建时的临时key与它在同一个slot
+    public static final String SHOP_BLOOM_KEY = "{bloom:shop}";
+
     // 用于缓存店铺类型列表
     public static final String CACHE_SHOP_LIST = "cache:shopList";
 
+    // 用于缓存用户的公开信息(UserDTO)
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    // 等待本节点其他线程重建缓存时 超过这个时间(毫秒)打印一次警告 然后继续等待
+    public static final Long CACHE_LOAD_WAIT_TIMEOUT = 500L;
+    // 获取重建锁失败后重新查询Redis的次数和间隔(毫秒)
+    public static final int CACHE_LOCK_RETRY_TIMES = 10;
+    public static final Long CACHE_LOCK_RETRY_INTERVAL = 20L;
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    // 优惠券卖完和补货的通知频道 消息内容为优惠券ID
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
+    // 新增秒杀券的通知频道 消息内容为 优惠券ID:开始时间:结束时间
+    public static final String SECKILL_VOUCHER_CHANNEL = "seckill:voucher";
+    // 秒杀准入令牌桶
+    public static final String SECKILL_ADMISSION_KEY = "seckill:admission:";
+    // 秒杀排队结果
+    public static final String SECKILL_TICKET_KEY = "seckill:ticket:";
+    public static final Long SECKILL_TICKET_TTL = 300L;
+    // 秒杀库存的分桶数
+    public static final String SECKILL_BUCKETS_KEY = "seckill:buckets:";
+
+    // 秒杀订单消息队列和消费者组
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    // 投递次数超过上限的订单消息
+    public static final String SECKILL_ORDER_DEAD_LETTER_STREAM = "stream.orders.dlq";
 
     public static final String BLOG_LIKE_KEY = "blog:like:";
 
     public static final String FOLLOW_LIST_KEY = "follow:list:";
 
     public static final String FEED_MESSAGEBOX_KEY = "feed:messageBox:";
+    // 未完成的推送任务 field是博文ID value是 作者ID:发布时间:已推送到的关注记录ID
+    public static final String FEED_FANOUT_KEY = "feed:fanout";
+    // 推送任务的租约 保证同一篇博文同时只有一个线程在推送
+    public static final String FEED_FANOUT_LEASE_KEY = "feed:fanout:lease:";
+    public static final Long FEED_FANOUT_LEASE_TTL = 60L;
+    // 粉丝数超过阈值的作者 只把博文写入自己的发件箱 由粉丝读取时拉取
+    public static final String FEED_BIG_AUTHORS_KEY = "feed:bigAuthors";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
 
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    // 商铺坐标变化的频道 各节点收到后更新本地空间索引
+    public static final String SHOP_GEO_CHANNEL = "shop:geo:changed";
+    // 商铺名称、地址等变化的频道 各节点收到后更新本地搜索索引
+    public static final String SHOP_SEARCH_CHANNEL = "shop:search:changed";
+    // 全量重建商铺GEO索引时的锁 以及重建期间发生变化的商铺ID
+    public static final String SHOP_GEO_REBUILD_LOCK_KEY = "lock:shop:geo:rebuild";
+    public static final Long SHOP_GEO_REBUILD_LOCK_TTL = 600L;
+    public static final String SHOP_GEO_DIRTY_KEY = "shop:geo:dirty";
 
     public static final String SIGN_KEY = "sign:";
 }
@@ -1,23 +1,86 @@
 package com.hmdp.utils;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * 利用Redis自增实现全局唯一ID
  * 0 + 31位时间戳 + 32位序列号 满足1秒中同时下单2^32条订单
+ * 通过hmdp.id-worker.mode选择ID的生成方式：
+ * incr    每次生成ID都执行一次INCR
+ * segment 号段模式 一次INCRBY预留一段序列号在本地分配 见SegmentIdAllocator
+ * snowflake 本地雪花算法 不访问Redis 启动时从Redis租用worker ID 见SnowflakeIdGenerator
  */
 @Component
 public class RedisIdWorker {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     public static final Long BEGIN_TIMESTAMP = 1640995200L; // 起始时间戳
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    // 用于后台预取号段
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    @Value("${hmdp.id-worker.mode:incr}")
+    private String mode = "incr";
+    @Value("${hmdp.id-worker.segment-step:1000}")
+    private int segmentStep = 1000;
+    @Value("${hmdp.id-worker.worker-lease-ttl:30}")
+    private long workerLeaseTtl = 30L;
+    // 租约续期间隔 应明显小于租约有效期
+    @Value("${hmdp.id-worker.heartbeat-interval:10000}")
+    private long heartbeatInterval = 10000L;
+
+    // 雪花算法模式下使用 所有业务前缀共用
+    private WorkerIdLease workerIdLease;
+    private SnowflakeIdGenerator snowflakeIdGenerator;
+
+    // 每个业务前缀一个号段分配器
+    private final Map<String, SegmentIdAllocator> segmentAllocators = new ConcurrentHashMap<>();
+
+    /**
+     * 雪花算法模式下启动时租用worker ID
+     */
+    @PostConstruct
+    public void init() {
+        if ("snowflake".equals(mode)) {
+            workerIdLease = new WorkerIdLease(stringRedisTemplate, SnowflakeIdGenerator.MAX_WORKERS, workerLeaseTtl);
+            workerIdLease.acquire();
+            workerIdLease.startRenewal(heartbeatInterval);
+            snowflakeIdGenerator = new SnowflakeIdGenerator(workerIdLease);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (workerIdLease != null) {
+            workerIdLease.release();
+        }
+    }
+
     public Long nextId(String prefixKey) {
+        if ("snowflake".equals(mode)) {
+            return snowflakeIdGenerator.nextId();
+        }
+        if ("segment".equals(mode)) {
+            return segmentAllocators.computeIfAbsent(prefixKey,
+                    key -> new SegmentIdAllocator(stringRedisTemplate, key, segmentStep, SEGMENT_PREFETCH_EXECUTOR)).nextId();
+        }
+        return nextIdWithIncr(prefixKey);
+    }
+
+    private Long nextIdWithIncr(String prefixKey) {
         // 1.获取当前时间戳
         LocalDateTime now = LocalDateTime.now();
         long currentTimeStamp = now.toEpochSecond(ZoneOffset.UTC);
@@ -28,7 +91,7 @@ public class RedisIdWorker {
         // [3]日期 因为Redis单个键中值的最大值就是2^64 如果时间久了 肯定会超过这个数值，导致序列号无法继续自增
         // 因此可以每一天设置一个key 一天中订单不可能超过2^64
         // icr:order:2022:11:23 就是一个键，设置成这样的好处是可以根据月份，天和年进行分别查找，因为都是用：隔开了
-        String data = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String data = now.format(DATE_FORMATTER);
         // 序列号从0自增，每次增加1
         Long serialCode = stringRedisTemplate.opsForValue().increment("icr:" + prefixKey + data);
         // 3.拼接结果 时间戳由于需要到高32位，因此使用位运算 << 向左移动32位
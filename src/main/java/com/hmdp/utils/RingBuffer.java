@@ -0,0 +1,284 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 参考Disruptor实现的环形缓冲区 用于请求线程和写库线程之间传递数据
+ * 1.槽位在创建时一次性分配，之后只修改槽位中对象的字段，不会产生新对象
+ * 2.多个生产者通过CAS推进cursor申请序号，写完槽位后在available数组中标记该序号已发布
+ * 3.多个消费者通过CAS推进workSequence一次认领一段连续的已发布序号，整段交给处理器批量处理
+ * 4.生产者不会覆盖还没有处理完的槽位，缓冲区满时tryPublish直接返回false，由调用方决定如何处理
+ *
+ * @param <E> 槽位中保存的对象
+ */
+@Slf4j
+public class RingBuffer<E> {
+    private final int bufferSize;
+    private final int mask;
+    // log2(bufferSize) 用来计算序号所在的圈数
+    private final int indexShift;
+    private final Object[] entries;
+    // 每个槽位最近一次发布的圈数 与序号的圈数相同时说明该序号已经发布
+    private final AtomicIntegerArray available;
+    private final WaitStrategy waitStrategy;
+
+    // 生产者已经申请到的最大序号
+    private final AtomicLong cursor = new AtomicLong(-1);
+    // 消费者已经认领的最大序号
+    private final AtomicLong workSequence = new AtomicLong(-1);
+    // 每个消费者正在处理的序号的前一个 生产者不能越过其中的最小值
+    private final List<AtomicLong> consumerSequences = new CopyOnWriteArrayList<>();
+    // 缓存的消费者最小序号 减少遍历消费者的次数
+    private final AtomicLong cachedGating = new AtomicLong(-1);
+
+    private volatile boolean running = true;
+
+    public RingBuffer(int bufferSize, Supplier<E> factory, WaitStrategy waitStrategy) {
+        if (bufferSize < 1 || Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("bufferSize必须是2的幂 bufferSize=" + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.mask = bufferSize - 1;
+        this.indexShift = Integer.numberOfTrailingZeros(bufferSize);
+        this.entries = new Object[bufferSize];
+        this.available = new AtomicIntegerArray(bufferSize);
+        for (int i = 0; i < bufferSize; i++) {
+            entries[i] = factory.get();
+            available.set(i, -1);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * 申请一个槽位 通过translator写入数据后发布
+     *
+     * @param translator 向槽位对象写入数据 不能抛出异常
+     * @return 缓冲区已满或已经关闭时返回false
+     */
+    public boolean tryPublish(Consumer<E> translator) {
+        if (!running) {
+            return false;
+        }
+        long next;
+        while (true) {
+            long current = cursor.get();
+            next = current + 1;
+            // 申请的槽位上一圈的数据必须已经处理完
+            long wrapPoint = next - bufferSize;
+            if (wrapPoint > cachedGating.get()) {
+                long gating = minimumConsumerSequence();
+                cachedGating.set(gating);
+                if (wrapPoint > gating) {
+                    return false;
+                }
+            }
+            if (cursor.compareAndSet(current, next)) {
+                break;
+            }
+        }
+        translator.accept(elementAt(next));
+        available.lazySet(index(next), (int) (next >>> indexShift));
+        waitStrategy.signal();
+        return true;
+    }
+
+    /**
+     * 启动消费者 每个消费者一次最多处理batchSize个连续的元素
+     * 处理器返回后槽位才会被释放 处理器中不能保存槽位对象的引用
+     */
+    public void start(int consumers, int batchSize, BatchHandler<E> handler, Executor executor) {
+        for (int i = 0; i < consumers; i++) {
+            AtomicLong sequence = new AtomicLong(workSequence.get());
+            consumerSequences.add(sequence);
+            executor.execute(() -> consume(sequence, batchSize, handler));
+        }
+    }
+
+    /**
+     * 停止接收新数据 消费者处理完已经发布的数据后退出
+     */
+    public void shutdown() {
+        running = false;
+        waitStrategy.signal();
+    }
+
+    /**
+     * 还没有处理完的元素数量
+     */
+    public long backlog() {
+        return cursor.get() - minimumConsumerSequence();
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    private void consume(AtomicLong sequence, int batchSize, BatchHandler<E> handler) {
+        List<E> batch = new ArrayList<>(batchSize);
+        int idle = 0;
+        while (true) {
+            // TODO 1.先把自己的序号推进到当前认领位置 保护之后认领到的槽位不被生产者覆盖
+            long claimed = workSequence.get();
+            sequence.set(claimed);
+            long hi = highestPublished(claimed + 1, Math.min(claimed + batchSize, cursor.get()));
+            if (hi <= claimed) {
+                if (!running && cursor.get() <= claimed) {
+                    return;
+                }
+                try {
+                    waitStrategy.idle(idle);
+                    idle = Math.min(idle + 1, 1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            // TODO 2.认领 [claimed + 1, hi] 其他消费者抢先认领时重试
+            if (!workSequence.compareAndSet(claimed, hi)) {
+                continue;
+            }
+            idle = 0;
+            for (long s = claimed + 1; s <= hi; s++) {
+                batch.add(elementAt(s));
+            }
+            // TODO 3.批量处理 处理完之后下一轮推进序号时才会释放槽位
+            try {
+                handler.onBatch(batch);
+            } catch (Exception e) {
+                log.error("处理环形缓冲区数据异常", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 从from开始向后找到连续已发布的最大序号
+     */
+    private long highestPublished(long from, long to) {
+        for (long s = from; s <= to; s++) {
+            if (available.get(index(s)) != (int) (s >>> indexShift)) {
+                return s - 1;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * 还没有消费者时以workSequence为准 缓冲区写满后不再接收数据
+     */
+    private long minimumConsumerSequence() {
+        long min = workSequence.get();
+        for (AtomicLong sequence : consumerSequences) {
+            min = Math.min(min, sequence.get());
+        }
+        return min;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E elementAt(long sequence) {
+        return (E) entries[index(sequence)];
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+
+    /**
+     * 批量处理器
+     */
+    public interface BatchHandler<E> {
+        void onBatch(List<E> batch);
+    }
+
+    /**
+     * 消费者没有数据可以处理时的等待策略
+     */
+    public interface WaitStrategy {
+        /**
+         * 消费者空闲时调用
+         *
+         * @param counter 连续空闲的次数
+         */
+        void idle(int counter) throws InterruptedException;
+
+        /**
+         * 生产者发布数据后调用 只有阻塞策略需要唤醒消费者
+         */
+        default void signal() {
+        }
+
+        /**
+         * 根据名称创建等待策略
+         * blocking  锁+条件变量 CPU占用最低 延迟最高
+         * sleeping  先自旋再让出CPU 最后短暂休眠
+         * yielding  先自旋再让出CPU
+         * busy-spin 一直自旋 延迟最低 每个消费者占满一个CPU核
+         */
+        static WaitStrategy of(String name) {
+            switch (name) {
+                case "blocking":
+                    return new BlockingWaitStrategy();
+                case "yielding":
+                    return counter -> {
+                        if (counter > 100) {
+                            Thread.yield();
+                        }
+                    };
+                case "busy-spin":
+                    return counter -> {
+                    };
+                case "sleeping":
+                    return counter -> {
+                        if (counter > 200) {
+                            LockSupport.parkNanos(100_000L);
+                        } else if (counter > 100) {
+                            Thread.yield();
+                        }
+                    };
+                default:
+                    throw new IllegalArgumentException("不支持的等待策略 " + name);
+            }
+        }
+    }
+
+    private static class BlockingWaitStrategy implements WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+
+        @Override
+        public void idle(int counter) throws InterruptedException {
+            lock.lock();
+            try {
+                // 检查和等待之间发布的数据可能错过唤醒 因此只等待1ms
+                notEmpty.await(1, TimeUnit.MILLISECONDS);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signal() {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀请求的准入控制 每个优惠券一个集群共享的令牌桶 拿到令牌的请求才会访问Redis和数据库中的库存
+ * 1.本地预取：每次从Redis令牌桶中批量申请令牌在本地发放，Redis桶为空时一段时间内直接拒绝，不再访问Redis
+ *   同一时间只有一个线程向Redis申请 其他线程短暂等待它申请到的令牌
+ * 2.溢出处理：hmdp.seckill.admission.overflow为reject时直接返回失败
+ * 为queue时进入本地有界队列并返回排队号，后台线程按令牌发放速度处理，结果写入Redis，通过排队号查询
+ * 后端的压力由令牌生成速度决定，与同时请求的用户数无关
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private static final DefaultRedisScript<Long> TOKEN_BUCKET_SCRIPT;
+
+    static {
+        TOKEN_BUCKET_SCRIPT = new DefaultRedisScript<>();
+        TOKEN_BUCKET_SCRIPT.setLocation(new ClassPathResource("tokenBucket.lua"));
+        TOKEN_BUCKET_SCRIPT.setResultType(Long.class);
+    }
+
+    // 排队状态 处理完成后替换成结果的JSON
+    private static final String TICKET_QUEUED = "queued";
+    // 等待其他线程申请令牌时每次挂起的时间(纳秒)
+    private static final long REFILL_PARK_NANOS = 50_000L;
+
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled = true;
+    // 每个优惠券每秒放行的请求数(整个集群)
+    @Value("${hmdp.seckill.admission.rate:2000}")
+    private int rate = 2000;
+    // 允许的突发请求数
+    @Value("${hmdp.seckill.admission.burst:2000}")
+    private int burst = 2000;
+    // 每次从Redis中申请的令牌数
+    @Value("${hmdp.seckill.admission.local-batch:20}")
+    private int localBatch = 20;
+    // 其他线程正在从Redis申请令牌时最多等待的时间(毫秒) 应略大于一次Redis调用的耗时
+    @Value("${hmdp.seckill.admission.refill-wait:5}")
+    private long refillWait = 5L;
+    // reject 或 queue
+    @Value("${hmdp.seckill.admission.overflow:reject}")
+    private String overflow = "reject";
+    @Value("${hmdp.seckill.admission.queue-capacity:10000}")
+    private int queueCapacity = 10000;
+    @Value("${hmdp.seckill.admission.queue-workers:2}")
+    private int queueWorkers = 2;
+    // 排队超过该时间(毫秒)仍然没有拿到令牌时返回失败
+    @Value("${hmdp.seckill.admission.queue-timeout:10000}")
+    private long queueTimeout = 10000L;
+
+    // 每个优惠券本地预取的令牌 优惠券结束后不再有请求 一段时间没有访问就移除
+    // 被移除时剩余的本地令牌随之丢弃 只会让放行的请求略少于令牌发放速度
+    private final Cache<Long, LocalTokens> localTokens = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+    private BlockingQueue<Ticket> tickets;
+    private ExecutorService queueExecutor;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        if (!"queue".equals(overflow)) {
+            return;
+        }
+        tickets = new ArrayBlockingQueue<>(queueCapacity);
+        queueExecutor = Executors.newFixedThreadPool(queueWorkers);
+        for (int i = 0; i < queueWorkers; i++) {
+            queueExecutor.submit(this::drainTickets);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (queueExecutor != null) {
+            queueExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 拿到令牌时执行秒杀 否则按照溢出策略处理
+     *
+     * @param voucherId
+     * @param seckill   秒杀逻辑 排队时在后台线程中执行 执行前会设置好UserHolder
+     * @return
+     */
+    public Result submit(Long voucherId, Supplier<Result> seckill) {
+        if (!enabled || tryAcquire(voucherId)) {
+            return seckill.get();
+        }
+        if (tickets == null) {
+            return Result.fail("抢购人数过多，请稍后重试");
+        }
+        // TODO 进入排队队列 返回排队号
+        String ticketId = UUID.randomUUID().toString(true);
+        Ticket ticket = new Ticket(ticketId, voucherId, UserHolder.getUser(), seckill, System.currentTimeMillis() + queueTimeout);
+        stringRedisTemplate.opsForValue().set(SECKILL_TICKET_KEY + ticketId, TICKET_QUEUED, SECKILL_TICKET_TTL, TimeUnit.SECONDS);
+        if (!tickets.offer(ticket)) {
+            stringRedisTemplate.delete(SECKILL_TICKET_KEY + ticketId);
+            return Result.fail("抢购人数过多，请稍后重试");
+        }
+        return Result.ok(Collections.singletonMap("ticket", ticketId));
+    }
+
+    /**
+     * 查询排队结果
+     *
+     * @param ticketId
+     * @return 还在排队时返回status=queued 处理完成后返回秒杀的结果
+     */
+    public Result queryTicket(String ticketId) {
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_TICKET_KEY + ticketId);
+        if (value == null) {
+            return Result.fail("排队信息不存在或已过期");
+        }
+        if (TICKET_QUEUED.equals(value)) {
+            return Result.ok(Collections.singletonMap("status", TICKET_QUEUED));
+        }
+        return JSONUtil.toBean(value, Result.class);
+    }
+
+    /**
+     * 申请一个令牌 优先使用本地预取的令牌
+     */
+    private boolean tryAcquire(Long voucherId) {
+        LocalTokens local = localTokens.get(voucherId, id -> new LocalTokens());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(refillWait);
+        while (true) {
+            // TODO 1.使用本地令牌
+            if (local.take()) {
+                return true;
+            }
+            // TODO 2.Redis令牌桶最近为空 直接拒绝
+            long now = System.currentTimeMillis();
+            if (now < local.emptyUntil) {
+                return false;
+            }
+            // TODO 3.从Redis批量申请令牌 同一时间只有一个线程申请
+            if (local.refilling.compareAndSet(false, true)) {
+                return refill(voucherId, local, now);
+            }
+            // TODO 4.其他线程正在申请 短暂等待它的结果再重新尝试 超过等待时间按没有令牌处理
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(REFILL_PARK_NANOS);
+        }
+    }
+
+    private boolean refill(Long voucherId, LocalTokens local, long now) {
+        try {
+            Long granted = stringRedisTemplate.execute(TOKEN_BUCKET_SCRIPT,
+                    Collections.singletonList(SECKILL_ADMISSION_KEY + voucherId),
+                    String.valueOf(rate), String.valueOf(burst), String.valueOf(now), String.valueOf(localBatch));
+            if (granted == null || granted == 0) {
+                // 生成一批令牌所需的时间内不再访问Redis
+                local.emptyUntil = now + Math.max(1L, 1000L * localBatch / rate);
+                return false;
+            }
+            // 自己用掉一个 其余的放到本地
+            local.tokens.addAndGet(granted - 1);
+            return true;
+        } finally {
+            local.refilling.set(false);
+        }
+    }
+
+    /**
+     * 后台线程按令牌发放速度处理排队的请求
+     */
+    private void drainTickets() {
+        while (running) {
+            Ticket ticket;
+            try {
+                ticket = tickets.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Result result;
+            try {
+                result = runTicket(ticket);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.error("处理排队请求异常 ticket={}", ticket.id, e);
+                result = Result.fail("服务器异常");
+            }
+            stringRedisTemplate.opsForValue().set(SECKILL_TICKET_KEY + ticket.id, JSONUtil.toJsonStr(result),
+                    SECKILL_TICKET_TTL, TimeUnit.SECONDS);
+        }
+    }
+
+    private Result runTicket(Ticket ticket) throws InterruptedException {
+        while (!tryAcquire(ticket.voucherId)) {
+            if (System.currentTimeMillis() > ticket.deadline) {
+                return Result.fail("排队超时，请稍后重试");
+            }
+            Thread.sleep(5);
+        }
+        UserHolder.saveUser(ticket.user);
+        try {
+            return ticket.seckill.get();
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    /**
+     * 本节点预取的令牌
+     */
+    private static class LocalTokens {
+        final AtomicLong tokens = new AtomicLong();
+        final AtomicBoolean refilling = new AtomicBoolean();
+        // Redis令牌桶为空时 在这个时间之前不再申请
+        volatile long emptyUntil;
+
+        boolean take() {
+            while (true) {
+                long current = tokens.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (tokens.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static class Ticket {
+        final String id;
+        final Long voucherId;
+        final UserDTO user;
+        final Supplier<Result> seckill;
+        final long deadline;
+
+        Ticket(String id, Long voucherId, UserDTO user, Supplier<Result> seckill, long deadline) {
+            this.id = id;
+            this.voucherId = voucherId;
+            this.user = user;
+            this.seckill = seckill;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分桶 把一个优惠券的库存拆分到多个key中 在Redis集群中分散到不同的slot
+ * 分桶i的库存key为 seckill:stock:{voucherId:i} 下单用户key为 seckill:order:{voucherId:i}
+ * 两个key使用相同的hash tag 保证seckill.lua操作的key在同一个slot
+ * 用户按ID哈希固定到一个分桶，一人一单只在这个分桶中判断
+ * 用户所在分桶没有库存时依次从其他分桶扣减 跨slot的操作不能放在一个脚本中 因此由这里逐个分桶调用
+ * 从其他分桶扣减成功后才在用户所在分桶记录下单用户 扣减失败的请求不会留下下单记录
+ * 分桶数为1的优惠券使用原来不分桶的key
+ */
+@Component
+public class SeckillStockBuckets {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> STEAL_SCRIPT;
+    private static final DefaultRedisScript<Long> CLAIM_SCRIPT;
+    private static final DefaultRedisScript<Long> ROLLBACK_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+
+        STEAL_SCRIPT = new DefaultRedisScript<>();
+        STEAL_SCRIPT.setLocation(new ClassPathResource("seckillSteal.lua"));
+        STEAL_SCRIPT.setResultType(Long.class);
+
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("seckillClaim.lua"));
+        CLAIM_SCRIPT.setResultType(Long.class);
+
+        ROLLBACK_SCRIPT = new DefaultRedisScript<>();
+        ROLLBACK_SCRIPT.setLocation(new ClassPathResource("seckillRollback.lua"));
+        ROLLBACK_SCRIPT.setResultType(Long.class);
+    }
+
+    // 优惠券的分桶数 创建后不会改变
+    private final Map<Long, Integer> bucketCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 创建秒杀优惠券时把库存平均分配到各个分桶
+     *
+     * @param voucherId
+     * @param stock
+     * @param buckets   分桶数 小于等于1时不分桶
+     */
+    public void init(Long voucherId, int stock, int buckets) {
+        buckets = Math.max(1, Math.min(buckets, Math.max(stock, 1)));
+        if (buckets == 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        } else {
+            int n = buckets;
+            // 各分桶的key在不同的slot Redis集群会以CROSSSLOT拒绝跨slot的MSET 这里在管道中逐个SET
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < n; i++) {
+                    // 前stock % buckets个分桶多分配一个
+                    String value = String.valueOf(stock / n + (i < stock % n ? 1 : 0));
+                    connection.set(stockKey(voucherId, i).getBytes(StandardCharsets.UTF_8), value.getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+        }
+        // 分桶数最后写入 其他节点读到分桶数时库存已经准备好
+        stringRedisTemplate.opsForValue().set(SECKILL_BUCKETS_KEY + voucherId, String.valueOf(buckets));
+        bucketCounts.put(voucherId, buckets);
+    }
+
+    /**
+     * 补充库存 平均分配到各个分桶
+     *
+     * @param voucherId
+     * @param count
+     */
+    public void addStock(Long voucherId, int count) {
+        int buckets = bucketCount(voucherId);
+        if (buckets == 1) {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, count);
+            return;
+        }
+        for (int i = 0; i < buckets; i++) {
+            int n = count / buckets + (i < count % buckets ? 1 : 0);
+            if (n > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i), n);
+            }
+        }
+    }
+
+    /**
+     * 判断购买资格并扣减库存
+     *
+     * @return 0 成功 1 库存不足 2 重复下单
+     */
+    public int tryAcquire(Long voucherId, Long userId) {
+        int buckets = bucketCount(voucherId);
+        if (buckets == 1) {
+            return execute(SECKILL_SCRIPT, Collections.emptyList(), voucherId, userId);
+        }
+        // TODO 1.在用户所在分桶中扣减库存
+        int home = bucketOf(userId, buckets);
+        int r = execute(SECKILL_SCRIPT, Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home)), voucherId, userId);
+        if (r != 3) {
+            return r;
+        }
+        // TODO 2.所在分桶没有库存 从随机位置开始依次尝试其他分桶 避免所有用户都挤到同一个分桶
+        int start = ThreadLocalRandom.current().nextInt(buckets);
+        for (int i = 0; i < buckets; i++) {
+            int bucket = (start + i) % buckets;
+            if (bucket == home) {
+                continue;
+            }
+            if (execute(STEAL_SCRIPT, Collections.singletonList(stockKey(voucherId, bucket)), voucherId, userId) == 0) {
+                // TODO 3.扣减成功 在用户所在分桶记录下单用户 重复下单时库存已由脚本归还
+                Long result = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                        Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home)), userId.toString());
+                return result.intValue();
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * 回滚tryAcquire成功时的扣减 库存归还到用户所在分桶
+     */
+    public void release(Long voucherId, Long userId) {
+        int buckets = bucketCount(voucherId);
+        List<String> keys = Collections.emptyList();
+        if (buckets > 1) {
+            int home = bucketOf(userId, buckets);
+            keys = Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home));
+        }
+        stringRedisTemplate.execute(ROLLBACK_SCRIPT, keys, voucherId.toString(), userId.toString());
+    }
+
+    /**
+     * 查询优惠券的分桶数 没有记录分桶数的优惠券是分桶功能上线前创建的 按不分桶处理
+     */
+    public int bucketCount(Long voucherId) {
+        Integer buckets = bucketCounts.get(voucherId);
+        if (buckets != null) {
+            return buckets;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_BUCKETS_KEY + voucherId);
+        if (value == null) {
+            // 不缓存 优惠券可能稍后才在其他节点创建
+            return 1;
+        }
+        buckets = Integer.valueOf(value);
+        bucketCounts.put(voucherId, buckets);
+        return buckets;
+    }
+
+    private int execute(DefaultRedisScript<Long> script, List<String> keys, Long voucherId, Long userId) {
+        Long result = stringRedisTemplate.execute(script, keys, voucherId.toString(), userId.toString());
+        return result.intValue();
+    }
+
+    private static int bucketOf(Long userId, int buckets) {
+        return Math.floorMod(Long.hashCode(userId), buckets);
+    }
+
+    private static String stockKey(Long voucherId, int bucket) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    private static String orderKey(Long voucherId, int bucket) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+}
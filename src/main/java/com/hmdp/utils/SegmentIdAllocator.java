@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisIdWorker.BEGIN_TIMESTAMP;
+
+/**
+ * 号段模式的ID分配器 每个业务前缀一个实例
+ * 通过一次INCRBY从Redis中预留一段序列号，之后在本地通过AtomicLong无锁分配
+ * 当前号段用到低水位时在后台预取下一个号段，号段用完时直接切换
+ * ID格式与RedisIdWorker相同：0 + 31位时间戳 + 32位序列号，序列号按天使用同一个Redis key保证全局唯一
+ */
+@Slf4j
+public class SegmentIdAllocator {
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String prefixKey;
+    // 每个号段的长度
+    private final int step;
+    // 剩余序列号少于该值时预取下一个号段
+    private final int lowWater;
+    private final Executor prefetchExecutor;
+
+    private volatile Segment current;
+    // 正在预取或已经预取完成的下一个号段
+    private volatile CompletableFuture<Segment> next;
+
+    public SegmentIdAllocator(StringRedisTemplate stringRedisTemplate, String prefixKey, int step, Executor prefetchExecutor) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.prefixKey = prefixKey;
+        this.step = step;
+        this.lowWater = Math.max(step / 5, 1);
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    public long nextId() {
+        while (true) {
+            Segment segment = current;
+            if (segment != null) {
+                // 与RedisIdWorker一致 时间戳是本地时间按UTC换算的秒数
+                long now = System.currentTimeMillis() / 1000 + segment.offsetSeconds;
+                if (now >= segment.dayStart && now < segment.dayStart + SECONDS_PER_DAY) {
+                    long serialCode = segment.cursor.getAndIncrement();
+                    if (serialCode <= segment.max) {
+                        if (serialCode == segment.max - lowWater) {
+                            prefetch(segment);
+                        }
+                        return (now - BEGIN_TIMESTAMP) << 32 | serialCode;
+                    }
+                }
+            }
+            // 号段用完或者已经跨天 切换号段后重试
+            switchSegment(segment);
+        }
+    }
+
+    private void prefetch(Segment segment) {
+        next = CompletableFuture.supplyAsync(() -> allocate(segment.dayStart / SECONDS_PER_DAY), prefetchExecutor);
+    }
+
+    /**
+     * 切换号段 只有号段用完时才会进入 多个线程同时进入时只有一个线程真正切换
+     */
+    private synchronized void switchSegment(Segment exhausted) {
+        if (current != exhausted) {
+            return;
+        }
+        long offsetSeconds = ZoneId.systemDefault().getRules().getOffset(Instant.now()).getTotalSeconds();
+        long day = Math.floorDiv(System.currentTimeMillis() / 1000 + offsetSeconds, SECONDS_PER_DAY);
+        Segment prefetched = null;
+        CompletableFuture<Segment> future = next;
+        next = null;
+        if (future != null) {
+            try {
+                prefetched = future.join();
+            } catch (Exception e) {
+                log.error("预取号段失败 prefix={}", prefixKey, e);
+            }
+        }
+        // 预取的号段属于前一天时丢弃
+        current = prefetched != null && prefetched.dayStart == day * SECONDS_PER_DAY ? prefetched : allocate(day);
+    }
+
+    /**
+     * 通过一次INCRBY预留一个号段
+     *
+     * @param day 本地日期对应的天数
+     */
+    private Segment allocate(long day) {
+        String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + prefixKey + date, step);
+        if (end == null) {
+            throw new IllegalStateException("分配号段失败 prefix=" + prefixKey);
+        }
+        long offsetSeconds = ZoneId.systemDefault().getRules().getOffset(Instant.now()).getTotalSeconds();
+        return new Segment(day * SECONDS_PER_DAY, offsetSeconds, end - step + 1, end);
+    }
+
+    private static class Segment {
+        // 号段所属日期的开始时间
+        final long dayStart;
+        // 本地时区相对UTC的偏移
+        final long offsetSeconds;
+        final AtomicLong cursor;
+        final long max;
+
+        Segment(long dayStart, long offsetSeconds, long min, long max) {
+            this.dayStart = dayStart;
+            this.offsetSeconds = offsetSeconds;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.hmdp.utils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 商铺坐标的本地空间索引 每个商铺类型一个网格
+ * 按经纬度把地球划分为 CELL_DEGREES x CELL_DEGREES 的网格，每个商铺按所在网格编号排序后保存在基本类型数组中
+ * 查询时只扫描与查询圆的外接矩形相交的网格，每一行网格的编号是连续的，通过一次二分查找定位
+ * 距离的计算方式与Redis GEO相同(haversine公式，同样的地球半径) 结果按距离从近到远排列，距离相同时按商铺ID排列
+ * 读操作不加锁，读取的是不可变的网格快照；写操作加锁并重建对应类型的网格，商铺的新增和修改很少，重建的代价可以接受
+ * 全量加载期间的新增、修改和删除会被记录下来，替换数据之后重新执行一次，不会被加载时读到的旧数据覆盖
+ * 不处理跨越180度经线的查询
+ */
+public class ShopGeoIndex {
+    // 与Redis GEO使用的地球半径相同
+    private static final double EARTH_RADIUS_IN_METERS = 6372797.560856;
+    // 网格大小 约1.1公里
+    private static final double CELL_DEGREES = 0.01;
+    private static final long CELL_COLUMNS = (long) Math.ceil(360 / CELL_DEGREES) + 1;
+
+    // 查询使用的网格快照
+    private final Map<Long, Grid> grids = new ConcurrentHashMap<>();
+    // 写操作使用的全部数据 类型ID -> 商铺ID -> {经度, 纬度}
+    private final Map<Long, Map<Long, double[]>> points = new HashMap<>();
+    private final Map<Long, Long> shopTypes = new HashMap<>();
+    // 全量加载期间收到的变化 {商铺ID, 类型ID, 经度, 纬度} 删除时只有商铺ID 没有在加载时为null
+    private List<Object[]> pendingChanges;
+
+    /**
+     * 新增或修改商铺坐标 商铺类型发生变化时从原来类型的网格中移除
+     */
+    public synchronized void put(Long shopId, Long typeId, double x, double y) {
+        if (pendingChanges != null) {
+            pendingChanges.add(new Object[]{shopId, typeId, x, y});
+        }
+        Long oldType = putPoint(shopId, typeId, x, y);
+        if (oldType != null && !oldType.equals(typeId)) {
+            rebuild(oldType);
+        }
+        rebuild(typeId);
+    }
+
+    public synchronized void remove(Long shopId) {
+        if (pendingChanges != null) {
+            pendingChanges.add(new Object[]{shopId});
+        }
+        Long typeId = removePoint(shopId);
+        if (typeId != null) {
+            rebuild(typeId);
+        }
+    }
+
+    /**
+     * @return 商铺原来的类型
+     */
+    private Long putPoint(Long shopId, Long typeId, double x, double y) {
+        Long oldType = shopTypes.put(shopId, typeId);
+        if (oldType != null && !oldType.equals(typeId)) {
+            points.get(oldType).remove(shopId);
+        }
+        points.computeIfAbsent(typeId, k -> new HashMap<>()).put(shopId, new double[]{x, y});
+        return oldType;
+    }
+
+    private Long removePoint(Long shopId) {
+        Long typeId = shopTypes.remove(shopId);
+        if (typeId != null) {
+            points.get(typeId).remove(shopId);
+        }
+        return typeId;
+    }
+
+    /**
+     * 全量加载 加载期间的put和remove先照常生效，加载完成替换数据之后再重新执行一次
+     *
+     * @param loader 读取全量数据 每个元素是 {商铺ID, 类型ID, 经度, 纬度}
+     */
+    public void reload(Supplier<Collection<Object[]>> loader) {
+        synchronized (this) {
+            pendingChanges = new ArrayList<>();
+        }
+        Collection<Object[]> shops;
+        try {
+            shops = loader.get();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                pendingChanges = null;
+            }
+            throw e;
+        }
+        replaceAll(shops);
+    }
+
+    /**
+     * 用全量数据替换索引中的所有数据 正在全量加载时重新执行加载期间收到的变化
+     *
+     * @param shops 每个元素是 {商铺ID, 类型ID, 经度, 纬度}
+     */
+    public synchronized void replaceAll(Collection<Object[]> shops) {
+        points.clear();
+        shopTypes.clear();
+        for (Object[] shop : shops) {
+            putPoint((Long) shop[0], (Long) shop[1], (Double) shop[2], (Double) shop[3]);
+        }
+        if (pendingChanges != null) {
+            for (Object[] change : pendingChanges) {
+                if (change.length == 1) {
+                    removePoint((Long) change[0]);
+                } else {
+                    putPoint((Long) change[0], (Long) change[1], (Double) change[2], (Double) change[3]);
+                }
+            }
+            pendingChanges = null;
+        }
+        points.values().removeIf(Map::isEmpty);
+        grids.keySet().removeIf(typeId -> !points.containsKey(typeId));
+        for (Long typeId : points.keySet()) {
+            rebuild(typeId);
+        }
+    }
+
+    private void rebuild(Long typeId) {
+        Map<Long, double[]> typePoints = points.get(typeId);
+        if (typePoints == null || typePoints.isEmpty()) {
+            points.remove(typeId);
+            grids.remove(typeId);
+            return;
+        }
+        grids.put(typeId, new Grid(typePoints));
+    }
+
+    /**
+     * 查询半径范围内距离最近的商铺
+     *
+     * @param typeId 商铺类型
+     * @param x      经度
+     * @param y      纬度
+     * @param radius 半径(米)
+     * @param limit  最多返回的商铺数
+     * @return 按距离从近到远排列的商铺
+     */
+    public Nearby nearby(Long typeId, double x, double y, double radius, int limit) {
+        return nearby(typeId, x, y, radius, limit, -1, -1);
+    }
+
+    /**
+     * 查询排在(afterDistance, afterId)之后的最近的商铺 用于翻页时从上一页的最后一个商铺继续查询
+     *
+     * @param afterDistance 上一页最后一个商铺的距离(米) 小于0表示从头开始
+     * @param afterId       上一页最后一个商铺的ID
+     */
+    public Nearby nearby(Long typeId, double x, double y, double radius, int limit, double afterDistance, long afterId) {
+        Grid grid = grids.get(typeId);
+        if (grid == null || limit <= 0) {
+            return Nearby.EMPTY;
+        }
+        return grid.nearby(x, y, radius, limit, afterDistance, afterId);
+    }
+
+    static long cellOf(double x, double y) {
+        return row(y) * CELL_COLUMNS + column(x);
+    }
+
+    private static long row(double y) {
+        return (long) Math.floor((Math.max(-90, Math.min(90, y)) + 90) / CELL_DEGREES);
+    }
+
+    private static long column(double x) {
+        return (long) Math.floor((Math.max(-180, Math.min(180, x)) + 180) / CELL_DEGREES);
+    }
+
+    /**
+     * 两点之间的距离(米) 与Redis的geohashGetDistance相同
+     */
+    static double distance(double x1, double y1, double x2, double y2) {
+        double lat1r = Math.toRadians(y1);
+        double lat2r = Math.toRadians(y2);
+        double u = Math.sin((lat2r - lat1r) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2.0 * EARTH_RADIUS_IN_METERS * Math.asin(Math.sqrt(u * u + Math.cos(lat1r) * Math.cos(lat2r) * v * v));
+    }
+
+    /**
+     * 一个类型的网格快照 创建后不再修改
+     */
+    private static class Grid {
+        // 按网格编号排序 网格编号相同时顺序任意
+        final long[] cells;
+        final long[] ids;
+        final double[] xs;
+        final double[] ys;
+
+        Grid(Map<Long, double[]> typePoints) {
+            int n = typePoints.size();
+            long[] rawIds = new long[n];
+            double[] rawXs = new double[n];
+            double[] rawYs = new double[n];
+            // 高32位是网格编号 低32位是下标 排序后就是按网格编号排列的下标
+            long[] order = new long[n];
+            int i = 0;
+            for (Map.Entry<Long, double[]> entry : typePoints.entrySet()) {
+                rawIds[i] = entry.getKey();
+                rawXs[i] = entry.getValue()[0];
+                rawYs[i] = entry.getValue()[1];
+                order[i] = cellOf(rawXs[i], rawYs[i]) << 32 | i;
+                i++;
+            }
+            Arrays.sort(order);
+            cells = new long[n];
+            ids = new long[n];
+            xs = new double[n];
+            ys = new double[n];
+            for (i = 0; i < n; i++) {
+                int index = (int) order[i];
+                cells[i] = order[i] >>> 32;
+                ids[i] = rawIds[index];
+                xs[i] = rawXs[index];
+                ys[i] = rawYs[index];
+            }
+        }
+
+        Nearby nearby(double x, double y, double radius, int limit, double afterDistance, long afterId) {
+            // TODO 计算查询圆的外接矩形
+            double latDelta = Math.toDegrees(radius / EARTH_RADIUS_IN_METERS);
+            double minY = y - latDelta;
+            double maxY = y + latDelta;
+            double minX = -180;
+            double maxX = 180;
+            // 外接矩形包含极点时需要扫描所有经度
+            if (minY > -90 && maxY < 90) {
+                double lonDelta = Math.toDegrees(Math.asin(Math.min(1, Math.sin(radius / EARTH_RADIUS_IN_METERS) / Math.cos(Math.toRadians(y)))));
+                minX = x - lonDelta;
+                maxX = x + lonDelta;
+            }
+            long minColumn = column(minX);
+            long maxColumn = column(maxX);
+            // TODO 逐行扫描相交的网格 用大顶堆保留距离最近的limit个商铺
+            TopK topK = new TopK(limit);
+            for (long row = row(minY), maxRow = row(maxY); row <= maxRow; row++) {
+                int from = lowerBound(cells, row * CELL_COLUMNS + minColumn);
+                int to = lowerBound(cells, row * CELL_COLUMNS + maxColumn + 1);
+                for (int i = from; i < to; i++) {
+                    double d = distance(x, y, xs[i], ys[i]);
+                    if (d <= radius && TopK.before(afterId, afterDistance, ids[i], d)) {
+                        topK.offer(ids[i], d);
+                    }
+                }
+            }
+            return topK.toNearby();
+        }
+
+        private static int lowerBound(long[] a, long key) {
+            int low = 0;
+            int high = a.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (a[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * 保留距离最近的k个商铺的大顶堆 堆顶是距离最远的商铺
+     */
+    private static class TopK {
+        final long[] ids;
+        final double[] distances;
+        int size;
+
+        TopK(int k) {
+            ids = new long[k];
+            distances = new double[k];
+        }
+
+        void offer(long id, double distance) {
+            if (size < ids.length) {
+                ids[size] = id;
+                distances[size] = distance;
+                siftUp(size++);
+            } else if (before(id, distance, ids[0], distances[0])) {
+                ids[0] = id;
+                distances[0] = distance;
+                siftDown(0);
+            }
+        }
+
+        /**
+         * 距离相同时按商铺ID排列 保证同样的数据每次查询的顺序相同
+         */
+        static boolean before(long id1, double d1, long id2, double d2) {
+            return d1 < d2 || (d1 == d2 && id1 < id2);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!before(ids[parent], distances[parent], ids[i], distances[i])) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int largest = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+                    if (before(ids[largest], distances[largest], ids[child], distances[child])) {
+                        largest = child;
+                    }
+                }
+                if (largest == i) {
+                    return;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            long id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+            double d = distances[i];
+            distances[i] = distances[j];
+            distances[j] = d;
+        }
+
+        /**
+         * 依次取出堆顶 从后往前填充 得到从近到远的结果
+         */
+        Nearby toNearby() {
+            int n = size;
+            long[] sortedIds = new long[n];
+            double[] sortedDistances = new double[n];
+            for (int i = n - 1; i >= 0; i--) {
+                sortedIds[i] = ids[0];
+                sortedDistances[i] = distances[0];
+                swap(0, --size);
+                siftDown(0);
+            }
+            return new Nearby(sortedIds, sortedDistances);
+        }
+    }
+
+    /**
+     * 查询结果 按距离从近到远排列
+     */
+    public static class Nearby {
+        public static final Nearby EMPTY = new Nearby(new long[0], new double[0]);
+
+        // 商铺ID
+        public final long[] ids;
+        // 距离(米)
+        public final double[] distances;
+
+        public Nearby(long[] ids, double[] distances) {
+            this.ids = ids;
+            this.distances = distances;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+    }
+}
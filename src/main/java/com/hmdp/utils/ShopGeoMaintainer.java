@@ -0,0 +1,205 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 维护Redis中按商铺类型划分的GEO索引 shop:geo:{typeId}
+ * 商铺新增、修改坐标或类型、删除时增量执行GEOADD/ZREM，类型变化时从原来类型的key中移除
+ * 全量重建时通过JDBC游标流式读取tb_shop，分批pipeline写入临时key，全部写完后用RENAME原子替换，查询不会看到写了一半的索引
+ * 重建期间发生变化的商铺ID记录到shop:geo:dirty中，替换完成后按数据库中的最新数据重新写入，避免被重建时读到的旧数据覆盖
+ * RENAME要求两个key在同一个节点上 Redis集群下需要给key加上hash tag
+ */
+@Slf4j
+@Component
+public class ShopGeoMaintainer {
+    private static final String REBUILD_SUFFIX = ":rebuild";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private IShopTypeService shopTypeService;
+    // 通过代理对象调用 使buildTemp的事务生效
+    @Resource
+    @Lazy
+    private ShopGeoMaintainer self;
+
+    // 全量重建时每次pipeline写入的商铺数
+    @Value("${hmdp.shop-geo.rebuild-batch-size:1000}")
+    private int rebuildBatchSize = 1000;
+
+    /**
+     * 新增商铺或者修改商铺的坐标、类型
+     *
+     * @param old     修改前的商铺 新增时为空
+     * @param current 修改后的商铺
+     */
+    public void save(Shop old, Shop current) {
+        if (current == null || current.getTypeId() == null || current.getX() == null || current.getY() == null) {
+            return;
+        }
+        markDirty(current.getId());
+        if (old != null && old.getTypeId() != null && !old.getTypeId().equals(current.getTypeId())) {
+            // TODO 类型发生变化 从原来类型的索引中移除
+            stringRedisTemplate.opsForZSet().remove(SHOP_GEO_KEY + old.getTypeId(), current.getId().toString());
+        }
+        stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + current.getTypeId(),
+                new Point(current.getX(), current.getY()), current.getId().toString());
+    }
+
+    public void remove(Shop shop) {
+        if (shop == null || shop.getTypeId() == null) {
+            return;
+        }
+        markDirty(shop.getId());
+        stringRedisTemplate.opsForZSet().remove(SHOP_GEO_KEY + shop.getTypeId(), shop.getId().toString());
+    }
+
+    /**
+     * 正在全量重建时记录发生变化的商铺
+     */
+    private void markDirty(Long shopId) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SHOP_GEO_REBUILD_LOCK_KEY))) {
+            stringRedisTemplate.opsForSet().add(SHOP_GEO_DIRTY_KEY, shopId.toString());
+        }
+    }
+
+    /**
+     * 启动时以及之后每隔一段时间全量重建GEO索引 多个节点同时执行时只有拿到锁的节点重建
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${hmdp.shop-geo.rebuild-interval:86400000}")
+    public void rebuild() {
+        // 锁的key就是SHOP_GEO_REBUILD_LOCK_KEY 增量更新时通过它判断是否正在重建
+        SimpleRedisLock lock = new SimpleRedisLock(stringRedisTemplate, "shop:geo:rebuild");
+        if (!lock.tryLock(SHOP_GEO_REBUILD_LOCK_TTL)) {
+            return;
+        }
+        try {
+            Set<Long> typeIds = new HashSet<>();
+            for (ShopType type : shopTypeService.list()) {
+                typeIds.add(type.getId());
+            }
+            // TODO 清理上一次失败的重建留下的临时key
+            for (Long typeId : typeIds) {
+                stringRedisTemplate.delete(SHOP_GEO_KEY + typeId + REBUILD_SUFFIX);
+            }
+            // TODO 流式读取所有商铺 分批写入临时key
+            Set<Long> builtTypes = new HashSet<>();
+            long count = self.buildTemp(typeIds, builtTypes);
+            // TODO 用临时key原子替换正式的key 没有商铺的类型直接删除
+            for (Long typeId : typeIds) {
+                if (builtTypes.contains(typeId)) {
+                    stringRedisTemplate.rename(SHOP_GEO_KEY + typeId + REBUILD_SUFFIX, SHOP_GEO_KEY + typeId);
+                } else {
+                    stringRedisTemplate.delete(SHOP_GEO_KEY + typeId);
+                }
+            }
+            // TODO 重新写入重建期间发生变化的商铺 释放锁之后再检查一次 处理释放锁之前刚刚记录的商铺
+            applyDirty(typeIds);
+            lock.unlock();
+            applyDirty(typeIds);
+            log.info("商铺GEO索引重建完成，共{}条", count);
+        } catch (Exception e) {
+            log.error("商铺GEO索引重建失败", e);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 流式读取所有商铺写入临时key 游标需要在事务中才能保持数据库连接
+     * 重建期间变化的商铺要在事务之外读取 否则读到的是事务开始时的快照
+     *
+     * @param typeIds    所有商铺类型 读到商铺类型表中没有的类型时加入
+     * @param builtTypes 写入了临时key的类型
+     * @return 写入的商铺数
+     */
+    @Transactional(readOnly = true)
+    public long buildTemp(Set<Long> typeIds, Set<Long> builtTypes) {
+        long count = 0;
+        List<Shop> batch = new ArrayList<>(rebuildBatchSize);
+        try (Cursor<Shop> cursor = shopMapper.scanGeo()) {
+            for (Shop shop : cursor) {
+                if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                    continue;
+                }
+                if (builtTypes.add(shop.getTypeId()) && typeIds.add(shop.getTypeId())) {
+                    // 商铺类型表中没有的类型 同样清理临时key
+                    stringRedisTemplate.delete(SHOP_GEO_KEY + shop.getTypeId() + REBUILD_SUFFIX);
+                }
+                batch.add(shop);
+                if (batch.size() >= rebuildBatchSize) {
+                    writeBatch(batch);
+                    count += batch.size();
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("关闭商铺游标失败", e);
+        }
+        writeBatch(batch);
+        return count + batch.size();
+    }
+
+    private void writeBatch(List<Shop> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : batch) {
+                connection.geoAdd(bytes(SHOP_GEO_KEY + shop.getTypeId() + REBUILD_SUFFIX),
+                        new Point(shop.getX(), shop.getY()), bytes(shop.getId().toString()));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 从所有类型的索引中移除发生变化的商铺 再按数据库中的最新数据写入
+     */
+    private void applyDirty(Set<Long> typeIds) {
+        Set<String> dirty = stringRedisTemplate.opsForSet().members(SHOP_GEO_DIRTY_KEY);
+        if (dirty == null || dirty.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForSet().remove(SHOP_GEO_DIRTY_KEY, dirty.toArray());
+        List<Shop> shops = shopMapper.selectBatchIds(dirty);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[][] members = dirty.stream().map(ShopGeoMaintainer::bytes).toArray(byte[][]::new);
+            for (Long typeId : typeIds) {
+                connection.zRem(bytes(SHOP_GEO_KEY + typeId), members);
+            }
+            for (Shop shop : shops) {
+                if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                    connection.geoAdd(bytes(SHOP_GEO_KEY + shop.getTypeId()),
+                            new Point(shop.getX(), shop.getY()), bytes(shop.getId().toString()));
+                }
+            }
+            return null;
+        });
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,392 @@
+package com.hmdp.utils;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * 商铺名称和地址的本地倒排索引
+ * 把名称和地址切分成长度为1、2、3的字符片段(n-gram)，每个片段对应一个按文档编号排序的int数组(倒排表)
+ * 中文不需要分词，查询词长度不超过3时直接查找对应的片段，超过3时取所有三字片段的倒排表求交集，再用contains校验排除误匹配
+ * 查询词中的空格分隔多个关键字 需要同时匹配
+ * 排序规则：名称匹配的排在地址匹配的前面，然后按评分、销量从高到低，最后按商铺ID
+ * 索引由基础段和增量段组成：全量加载时构建基础段，新增和修改的商铺写入增量段，旧的文档只做删除标记
+ * 增量段超过阈值时把所有有效文档合并成新的基础段；读操作读取不可变的快照，不加锁
+ * 全量加载期间的新增、修改和删除会被记录下来，构建新的基础段时以记录的数据为准，不会被加载时读到的旧数据覆盖
+ */
+public class ShopSearchIndex {
+    private static final int MAX_GRAM = 3;
+    private static final int[] EMPTY_POSTINGS = new int[0];
+
+    private final int mergeThreshold;
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap(), Collections.emptyMap(), new BitSet(),
+            new Docs(0), Collections.emptyList());
+
+    // 以下字段只有写线程在锁内访问
+    private final Map<Long, Integer> docOfShop = new HashMap<>();
+    // 全量加载期间收到的变化 商铺ID -> {商铺ID, 名称, 地址, 评分, 销量} 删除时为null 没有在加载时整个表为null
+    private Map<Long, Object[]> pendingChanges;
+
+    /**
+     * @param mergeThreshold 增量段中的文档数超过该值时合并到基础段
+     */
+    public ShopSearchIndex(int mergeThreshold) {
+        this.mergeThreshold = mergeThreshold;
+    }
+
+    /**
+     * 全量加载 加载期间的put和remove先照常生效，加载完成重建索引时再以它们为准
+     *
+     * @param loader 读取全量数据 每个元素是 {商铺ID, 名称, 地址, 评分, 销量}
+     */
+    public void reload(Supplier<List<Object[]>> loader) {
+        synchronized (this) {
+            pendingChanges = new HashMap<>();
+        }
+        List<Object[]> shops;
+        try {
+            shops = loader.get();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                pendingChanges = null;
+            }
+            throw e;
+        }
+        replaceAll(shops);
+    }
+
+    /**
+     * 用全量数据重建索引 正在全量加载时加载期间变化过的商铺使用收到的最新数据
+     *
+     * @param shops 每个元素是 {商铺ID, 名称, 地址, 评分, 销量}
+     */
+    public synchronized void replaceAll(List<Object[]> shops) {
+        Map<Long, Object[]> changes = pendingChanges == null ? Collections.emptyMap() : pendingChanges;
+        pendingChanges = null;
+        Docs docs = new Docs(shops.size() + changes.size());
+        docOfShop.clear();
+        for (Object[] shop : shops) {
+            Long shopId = (Long) shop[0];
+            if (docOfShop.containsKey(shopId) || changes.containsKey(shopId)) {
+                continue;
+            }
+            docOfShop.put(shopId, docs.add(shopId, (String) shop[1], (String) shop[2], (Integer) shop[3], (Integer) shop[4]));
+        }
+        for (Object[] shop : changes.values()) {
+            if (shop != null) {
+                Long shopId = (Long) shop[0];
+                docOfShop.put(shopId, docs.add(shopId, (String) shop[1], (String) shop[2], (Integer) shop[3], (Integer) shop[4]));
+            }
+        }
+        snapshot = new Snapshot(buildPostings(docs, 0, docs.size, null), Collections.emptyMap(), new BitSet(), docs, Collections.emptyList());
+    }
+
+    /**
+     * 新增或修改商铺 旧的文档标记为删除 新的文档写入增量段
+     */
+    public synchronized void put(Long shopId, String name, String address, Integer score, Integer sold) {
+        if (pendingChanges != null) {
+            pendingChanges.put(shopId, new Object[]{shopId, name, address, score, sold});
+        }
+        Snapshot current = snapshot;
+        BitSet deleted = (BitSet) current.deleted.clone();
+        Integer old = docOfShop.get(shopId);
+        if (old != null) {
+            deleted.set(old);
+        }
+        // 数组扩容时复制一份 快照中引用的旧数组不受影响
+        Docs docs = current.docs.ensureCapacity(current.docs.size + 1);
+        int docId = docs.add(shopId, name, address, score, sold);
+        docOfShop.put(shopId, docId);
+        List<Integer> deltaDocs = new ArrayList<>(current.deltaDocs);
+        deltaDocs.add(docId);
+        if (deltaDocs.size() > mergeThreshold) {
+            merge(docs, deleted);
+            return;
+        }
+        snapshot = new Snapshot(current.base, buildDeltaPostings(docs, deltaDocs, deleted), deleted, docs, deltaDocs);
+    }
+
+    public synchronized void remove(Long shopId) {
+        if (pendingChanges != null) {
+            pendingChanges.put(shopId, null);
+        }
+        Integer old = docOfShop.remove(shopId);
+        if (old == null) {
+            return;
+        }
+        Snapshot current = snapshot;
+        BitSet deleted = (BitSet) current.deleted.clone();
+        deleted.set(old);
+        snapshot = new Snapshot(current.base, current.delta, deleted, current.docs, current.deltaDocs);
+    }
+
+    /**
+     * 把所有有效文档重新编号 构建新的基础段
+     */
+    private void merge(Docs docs, BitSet deleted) {
+        Docs merged = new Docs(docs.size - deleted.cardinality());
+        docOfShop.clear();
+        for (int i = 0; i < docs.size; i++) {
+            if (!deleted.get(i)) {
+                docOfShop.put(docs.shopIds[i], merged.add(docs.shopIds[i], docs.names[i], docs.addresses[i], docs.scores[i], docs.solds[i]));
+            }
+        }
+        snapshot = new Snapshot(buildPostings(merged, 0, merged.size, null), Collections.emptyMap(), new BitSet(), merged, Collections.emptyList());
+    }
+
+    private static Map<String, int[]> buildDeltaPostings(Docs docs, List<Integer> deltaDocs, BitSet deleted) {
+        List<Integer> live = new ArrayList<>(deltaDocs.size());
+        for (Integer docId : deltaDocs) {
+            if (!deleted.get(docId)) {
+                live.add(docId);
+            }
+        }
+        return buildPostings(docs, 0, 0, live);
+    }
+
+    /**
+     * 构建倒排表 文档编号按从小到大的顺序加入 每个倒排表天然有序
+     *
+     * @param docIds 不为空时只处理这些文档 否则处理[from, to)
+     */
+    private static Map<String, int[]> buildPostings(Docs docs, int from, int to, List<Integer> docIds) {
+        Map<String, IntList> lists = new HashMap<>();
+        int n = docIds == null ? to - from : docIds.size();
+        for (int k = 0; k < n; k++) {
+            int docId = docIds == null ? from + k : docIds.get(k);
+            addGrams(lists, docs.names[docId], docId);
+            addGrams(lists, docs.addresses[docId], docId);
+        }
+        Map<String, int[]> postings = new HashMap<>(lists.size() * 4 / 3 + 1);
+        for (Map.Entry<String, IntList> entry : lists.entrySet()) {
+            postings.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return postings;
+    }
+
+    private static void addGrams(Map<String, IntList> lists, String text, int docId) {
+        for (int len = 1; len <= MAX_GRAM; len++) {
+            for (int i = 0; i + len <= text.length(); i++) {
+                String gram = text.substring(i, i + len);
+                if (gram.trim().length() < len) {
+                    // 包含空白的片段没有意义
+                    continue;
+                }
+                // 同一个文档中重复出现的片段只记录一次
+                lists.computeIfAbsent(gram, k -> new IntList()).addIfLast(docId);
+            }
+        }
+    }
+
+    static String normalize(String text) {
+        return text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 查询名称或地址中包含关键字的商铺
+     *
+     * @param query 关键字 空格分隔的多个关键字需要同时匹配
+     * @param from  跳过的商铺数
+     * @param size  返回的商铺数
+     * @return 排好序的商铺ID
+     */
+    public List<Long> search(String query, int from, int size) {
+        String[] keywords = normalize(query).split("\\s+");
+        Snapshot s = snapshot;
+        if (keywords.length == 0 || keywords[0].isEmpty() || size <= 0) {
+            return Collections.emptyList();
+        }
+        // TODO 分别在基础段和增量段中求交集 两个段的文档编号不重叠
+        int[] baseHits = intersect(s.base, keywords);
+        int[] deltaHits = intersect(s.delta, keywords);
+        // TODO 校验并排序 用大小为from + size的堆保留排在最前面的文档
+        int limit = from + size;
+        PriorityQueue<int[]> heap = new PriorityQueue<>(limit + 1, (a, b) -> s.compare(b, a));
+        for (int[] hits : new int[][]{baseHits, deltaHits}) {
+            for (int docId : hits) {
+                if (s.deleted.get(docId)) {
+                    continue;
+                }
+                int match = s.match(docId, keywords);
+                if (match < 0) {
+                    continue;
+                }
+                heap.offer(new int[]{docId, match});
+                if (heap.size() > limit) {
+                    heap.poll();
+                }
+            }
+        }
+        List<int[]> ranked = new ArrayList<>(heap);
+        ranked.sort(s::compare);
+        List<Long> shopIds = new ArrayList<>(size);
+        for (int i = from; i < ranked.size(); i++) {
+            shopIds.add(s.docs.shopIds[ranked.get(i)[0]]);
+        }
+        return shopIds;
+    }
+
+    /**
+     * 所有关键字的所有片段的倒排表求交集 从最短的倒排表开始
+     */
+    private static int[] intersect(Map<String, int[]> postings, String[] keywords) {
+        List<int[]> lists = new ArrayList<>();
+        for (String keyword : keywords) {
+            if (keyword.length() <= MAX_GRAM) {
+                lists.add(postings.getOrDefault(keyword, EMPTY_POSTINGS));
+                continue;
+            }
+            for (int i = 0; i + MAX_GRAM <= keyword.length(); i++) {
+                lists.add(postings.getOrDefault(keyword.substring(i, i + MAX_GRAM), EMPTY_POSTINGS));
+            }
+        }
+        lists.sort(Comparator.comparingInt(a -> a.length));
+        int[] result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i));
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    /**
+     * 不可变的索引快照
+     */
+    private static class Snapshot {
+        final Map<String, int[]> base;
+        final Map<String, int[]> delta;
+        final BitSet deleted;
+        final Docs docs;
+        final List<Integer> deltaDocs;
+
+        Snapshot(Map<String, int[]> base, Map<String, int[]> delta, BitSet deleted, Docs docs, List<Integer> deltaDocs) {
+            this.base = base;
+            this.delta = delta;
+            this.deleted = deleted;
+            this.docs = docs;
+            this.deltaDocs = deltaDocs;
+        }
+
+        /**
+         * 校验文档是否包含所有关键字
+         *
+         * @return 1 名称包含所有关键字 0 名称和地址合起来包含所有关键字 -1 不匹配
+         */
+        int match(int docId, String[] keywords) {
+            boolean inName = true;
+            for (String keyword : keywords) {
+                if (docs.names[docId].contains(keyword)) {
+                    continue;
+                }
+                inName = false;
+                if (!docs.addresses[docId].contains(keyword)) {
+                    return -1;
+                }
+            }
+            return inName ? 1 : 0;
+        }
+
+        /**
+         * 排在前面的文档比较结果小于0
+         *
+         * @param a {文档编号, 匹配结果}
+         */
+        int compare(int[] a, int[] b) {
+            if (a[1] != b[1]) {
+                return b[1] - a[1];
+            }
+            int x = a[0];
+            int y = b[0];
+            if (docs.scores[x] != docs.scores[y]) {
+                return Integer.compare(docs.scores[y], docs.scores[x]);
+            }
+            if (docs.solds[x] != docs.solds[y]) {
+                return Integer.compare(docs.solds[y], docs.solds[x]);
+            }
+            return Long.compare(docs.shopIds[x], docs.shopIds[y]);
+        }
+    }
+
+    /**
+     * 按文档编号保存的商铺数据 只会在末尾追加
+     */
+    private static class Docs {
+        long[] shopIds;
+        String[] names;
+        String[] addresses;
+        int[] scores;
+        int[] solds;
+        int size;
+
+        Docs(int capacity) {
+            capacity = Math.max(capacity, 16);
+            shopIds = new long[capacity];
+            names = new String[capacity];
+            addresses = new String[capacity];
+            scores = new int[capacity];
+            solds = new int[capacity];
+        }
+
+        /**
+         * 返回一个可以追加的副本 容量足够时共用数组 追加的位置在已有快照的范围之外
+         */
+        Docs ensureCapacity(int capacity) {
+            Docs copy = new Docs(0);
+            int length = shopIds.length >= capacity ? shopIds.length : Math.max(capacity, shopIds.length * 2);
+            copy.shopIds = length == shopIds.length ? shopIds : Arrays.copyOf(shopIds, length);
+            copy.names = length == names.length ? names : Arrays.copyOf(names, length);
+            copy.addresses = length == addresses.length ? addresses : Arrays.copyOf(addresses, length);
+            copy.scores = length == scores.length ? scores : Arrays.copyOf(scores, length);
+            copy.solds = length == solds.length ? solds : Arrays.copyOf(solds, length);
+            copy.size = size;
+            return copy;
+        }
+
+        int add(long shopId, String name, String address, Integer score, Integer sold) {
+            shopIds[size] = shopId;
+            names[size] = normalize(name);
+            addresses[size] = normalize(address);
+            scores[size] = score == null ? 0 : score;
+            solds[size] = sold == null ? 0 : sold;
+            return size++;
+        }
+    }
+
+    /**
+     * 构建倒排表时使用的int数组
+     */
+    private static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void addIfLast(int value) {
+            if (size > 0 && values[size - 1] == value) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
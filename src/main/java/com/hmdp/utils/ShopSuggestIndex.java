@@ -0,0 +1,192 @@
+package com.hmdp.utils;
+
+import java.util.*;
+
+/**
+ * 商铺名称的前缀补全索引 创建后不再修改 重建时整体替换
+ * 所有不重复的名称按小写形式排序，字典树的每个节点对应排序数组中的一个连续区间，查找前缀只需要二分查找区间的两端
+ * 区间内名称较多的节点(重节点)预先计算好热度最高的k个名称，保存在以前缀为key的表中
+ * 区间内名称不超过LIGHT_NODE_SIZE的节点不保存 查询时直接在区间内选出前k个
+ * 因此查询的代价与商铺总数无关；重节点的数量不超过 名称总长度 / LIGHT_NODE_SIZE
+ * 热度 = 销量 x 评分 名称相同的商铺取热度最高的一个
+ */
+public class ShopSuggestIndex {
+    // 区间长度不超过该值的节点在查询时直接计算
+    private static final int LIGHT_NODE_SIZE = 64;
+
+    public static final ShopSuggestIndex EMPTY = build(Collections.emptyList(), 1);
+
+    private final int topK;
+    // 按小写名称排序
+    private final String[] keys;
+    private final String[] names;
+    private final long[] weights;
+    // 重节点 前缀 -> 按热度排列的前k个名称的下标
+    private final Map<String, int[]> heavyNodes;
+
+    private ShopSuggestIndex(int topK, String[] keys, String[] names, long[] weights, Map<String, int[]> heavyNodes) {
+        this.topK = topK;
+        this.keys = keys;
+        this.names = names;
+        this.weights = weights;
+        this.heavyNodes = heavyNodes;
+    }
+
+    /**
+     * 构建索引
+     *
+     * @param shops 每个元素是 {名称, 评分, 销量}
+     * @param topK  每个前缀最多返回的名称数
+     */
+    public static ShopSuggestIndex build(List<Object[]> shops, int topK) {
+        // TODO 名称去重 相同名称保留热度最高的
+        Map<String, Object[]> distinct = new HashMap<>(shops.size() * 4 / 3 + 1);
+        for (Object[] shop : shops) {
+            String name = shop[0] == null ? "" : ((String) shop[0]).trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            long weight = weight((Integer) shop[1], (Integer) shop[2]);
+            String key = name.toLowerCase(Locale.ROOT);
+            Object[] old = distinct.get(key);
+            if (old == null || (Long) old[1] < weight) {
+                distinct.put(key, new Object[]{name, weight});
+            }
+        }
+        // TODO 按小写名称排序
+        String[] keys = distinct.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+        String[] names = new String[keys.length];
+        long[] weights = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            Object[] entry = distinct.get(keys[i]);
+            names[i] = (String) entry[0];
+            weights[i] = (Long) entry[1];
+        }
+        ShopSuggestIndex index = new ShopSuggestIndex(topK, keys, names, weights, new HashMap<>());
+        // TODO 自底向上计算重节点的前k个名称 根节点(空前缀)不对外提供
+        if (keys.length > LIGHT_NODE_SIZE) {
+            index.buildNode(0, keys.length, 0);
+        }
+        index.heavyNodes.remove("");
+        return index;
+    }
+
+    private static long weight(Integer score, Integer sold) {
+        return (long) Math.max(sold == null ? 0 : sold, 0) * Math.max(score == null ? 0 : score, 1);
+    }
+
+    /**
+     * 计算区间[lo, hi)对应节点的前k个名称 区间内所有名称的前depth个字符相同
+     */
+    private int[] buildNode(int lo, int hi, int depth) {
+        if (hi - lo <= LIGHT_NODE_SIZE) {
+            return topOfRange(lo, hi);
+        }
+        // 长度正好是depth的名称排在区间的最前面 只有一个
+        List<int[]> candidates = new ArrayList<>();
+        int i = lo;
+        if (keys[i].length() == depth) {
+            candidates.add(new int[]{i});
+            i++;
+        }
+        // TODO 按第depth个字符把区间划分为子节点
+        while (i < hi) {
+            char c = keys[i].charAt(depth);
+            int j = i + 1;
+            while (j < hi && keys[j].charAt(depth) == c) {
+                j++;
+            }
+            candidates.add(buildNode(i, j, depth + 1));
+            i = j;
+        }
+        int[] top = merge(candidates);
+        heavyNodes.put(keys[lo].substring(0, depth), top);
+        return top;
+    }
+
+    /**
+     * 合并各个子节点的前k个名称
+     */
+    private int[] merge(List<int[]> lists) {
+        int total = 0;
+        for (int[] list : lists) {
+            total += list.length;
+        }
+        int[] all = new int[total];
+        int n = 0;
+        for (int[] list : lists) {
+            System.arraycopy(list, 0, all, n, list.length);
+            n += list.length;
+        }
+        return top(all);
+    }
+
+    private int[] topOfRange(int lo, int hi) {
+        int[] all = new int[hi - lo];
+        for (int i = lo; i < hi; i++) {
+            all[i - lo] = i;
+        }
+        return top(all);
+    }
+
+    /**
+     * 按热度从高到低取前k个 热度相同时按名称排列
+     */
+    private int[] top(int[] candidates) {
+        Integer[] boxed = new Integer[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            boxed[i] = candidates[i];
+        }
+        Arrays.sort(boxed, (a, b) -> weights[a] != weights[b] ? Long.compare(weights[b], weights[a]) : Integer.compare(a, b));
+        int n = Math.min(topK, boxed.length);
+        int[] top = new int[n];
+        for (int i = 0; i < n; i++) {
+            top[i] = boxed[i];
+        }
+        return top;
+    }
+
+    /**
+     * 查询以prefix开头的热度最高的名称
+     *
+     * @param prefix 前缀 不区分大小写
+     * @return 按热度从高到低排列的名称
+     */
+    public List<String> suggest(String prefix) {
+        String key = prefix == null ? "" : prefix.trim().toLowerCase(Locale.ROOT);
+        if (key.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int[] top = heavyNodes.get(key);
+        if (top == null) {
+            // 轻节点 区间内的名称不超过LIGHT_NODE_SIZE个
+            int lo = lowerBound(key);
+            int hi = lowerBound(key + Character.MAX_VALUE);
+            top = topOfRange(lo, hi);
+        }
+        List<String> result = new ArrayList<>(top.length);
+        for (int i : top) {
+            result.add(names[i]);
+        }
+        return result;
+    }
+
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+}
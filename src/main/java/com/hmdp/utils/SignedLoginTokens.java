@@ -0,0 +1,284 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 无状态登录token hmdp.login.mode为signed时使用
+ * token = base64url(用户信息+过期时间) + "." + base64url(HMAC-SHA256签名) 校验时只需要本地计算签名 不访问Redis
+ * 退出登录的token记录在Redis的ZSet中(分数为过期时间)，各节点在内存中用布隆过滤器保存一份
+ * 只有布隆过滤器命中时才需要到Redis中确认 正常请求没有任何I/O
+ * 新的撤销通过Redis频道通知其他节点 各节点还会定期从Redis全量重建布隆过滤器
+ */
+@Slf4j
+@Component
+public class SignedLoginTokens {
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final byte VERSION = 1;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.login.mode:redis}")
+    private String mode = "redis";
+    @Value("${hmdp.login.secret:}")
+    private String secret = "";
+    // token的有效期(秒) 无状态token不能续期
+    @Value("${hmdp.login.signed-ttl:86400}")
+    private long ttl = 86400L;
+    // 布隆过滤器预计保存的撤销数量
+    @Value("${hmdp.login.revocation-capacity:100000}")
+    private int revocationCapacity = 100000;
+
+    private SecretKeySpec key;
+    private volatile LocalBloomFilter revoked;
+
+    @PostConstruct
+    private void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        if (StrUtil.isBlank(secret)) {
+            throw new IllegalStateException("hmdp.login.mode为signed时必须配置hmdp.login.secret");
+        }
+        key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        reloadRevoked();
+    }
+
+    public boolean isEnabled() {
+        return "signed".equals(mode);
+    }
+
+    /**
+     * 登录时签发token
+     *
+     * @param user
+     * @return
+     */
+    public String issue(UserDTO user) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            // token的唯一标识 撤销时使用
+            out.writeLong(ThreadLocalRandom.current().nextLong());
+            out.writeLong(System.currentTimeMillis() / 1000 + ttl);
+            out.writeLong(user.getId());
+            out.writeUTF(StrUtil.nullToEmpty(user.getNickName()));
+            out.writeUTF(StrUtil.nullToEmpty(user.getIcon()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] payload = bytes.toByteArray();
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(sign(payload));
+    }
+
+    /**
+     * 校验token 通过时返回其中的用户信息
+     *
+     * @param token
+     * @return 签名错误、已过期或已撤销时返回null
+     */
+    public UserDTO verify(String token) {
+        Claims claims = parse(token);
+        if (claims == null || claims.expireAt <= System.currentTimeMillis() / 1000) {
+            return null;
+        }
+        // 布隆过滤器没有命中时一定没有撤销
+        if (revoked.mightContain(claims.tokenId)
+                && stringRedisTemplate.opsForZSet().score(LOGIN_REVOKED_KEY, Long.toString(claims.tokenId)) != null) {
+            return null;
+        }
+        return claims.user;
+    }
+
+    /**
+     * 退出登录时撤销token 记录保留到token过期为止
+     *
+     * @param token
+     */
+    public void revoke(String token) {
+        Claims claims = parse(token);
+        if (claims == null) {
+            return;
+        }
+        String tokenId = Long.toString(claims.tokenId);
+        stringRedisTemplate.opsForZSet().add(LOGIN_REVOKED_KEY, tokenId, claims.expireAt);
+        applyRevoked(tokenId);
+        stringRedisTemplate.convertAndSend(LOGIN_REVOKED_CHANNEL, tokenId);
+    }
+
+    /**
+     * 收到其他节点的撤销通知
+     *
+     * @param tokenId
+     */
+    public void applyRevoked(String tokenId) {
+        LocalBloomFilter filter = revoked;
+        if (filter != null) {
+            filter.add(Long.parseLong(tokenId));
+        }
+    }
+
+    /**
+     * 删除已经过期的撤销记录 并根据剩余记录重建布隆过滤器
+     */
+    @Scheduled(fixedDelayString = "${hmdp.login.revocation-reload-interval:30000}")
+    public void reloadRevoked() {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForZSet().removeRangeByScore(LOGIN_REVOKED_KEY, 0, System.currentTimeMillis() / 1000);
+            Set<String> tokenIds = stringRedisTemplate.opsForZSet().range(LOGIN_REVOKED_KEY, 0, -1);
+            LocalBloomFilter filter = new LocalBloomFilter(Math.max(revocationCapacity, tokenIds == null ? 0 : tokenIds.size()));
+            if (tokenIds != null) {
+                for (String tokenId : tokenIds) {
+                    filter.add(Long.parseLong(tokenId));
+                }
+            }
+            revoked = filter;
+        } catch (Exception e) {
+            log.error("重建撤销token布隆过滤器失败", e);
+            if (revoked == null) {
+                // 启动时Redis不可用 所有token都到Redis中确认
+                revoked = LocalBloomFilter.ALWAYS;
+            }
+        }
+    }
+
+    private Claims parse(String token) {
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            payload = decoder.decode(token.substring(0, dot));
+            signature = decoder.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // 使用固定时间的比较 避免通过响应时间猜测签名
+        if (!MessageDigest.isEqual(sign(payload), signature)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            Claims claims = new Claims();
+            claims.tokenId = in.readLong();
+            claims.expireAt = in.readLong();
+            UserDTO user = new UserDTO();
+            user.setId(in.readLong());
+            user.setNickName(StrUtil.emptyToNull(in.readUTF()));
+            user.setIcon(StrUtil.emptyToNull(in.readUTF()));
+            claims.user = user;
+            return claims;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private byte[] sign(byte[] payload) {
+        try {
+            // Mac不是线程安全的 每次创建
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Claims {
+        long tokenId;
+        // 过期时间 秒
+        long expireAt;
+        UserDTO user;
+    }
+
+    /**
+     * 本地布隆过滤器 误判率约1%
+     */
+    private static class LocalBloomFilter {
+        // Redis不可用时使用 所有元素都认为可能存在
+        static final LocalBloomFilter ALWAYS = new LocalBloomFilter(0);
+        private static final int NUM_HASH_FUNCTIONS = 7;
+
+        private final AtomicLongArray bits;
+        private final long numBits;
+
+        LocalBloomFilter(int expectedInsertions) {
+            // m = n * 9.6 约等于1%的误判率
+            this.numBits = Math.max(expectedInsertions * 10L, 64L);
+            this.bits = expectedInsertions == 0 ? null : new AtomicLongArray((int) ((numBits + 63) / 64));
+        }
+
+        void add(long value) {
+            if (bits == null) {
+                return;
+            }
+            long[] hash = hash(value);
+            long combined = hash[0];
+            for (int i = 0; i < NUM_HASH_FUNCTIONS; i++) {
+                long offset = (combined & Long.MAX_VALUE) % numBits;
+                int index = (int) (offset >>> 6);
+                long mask = 1L << offset;
+                long word;
+                do {
+                    word = bits.get(index);
+                } while ((word & mask) == 0 && !bits.compareAndSet(index, word, word | mask));
+                combined += hash[1];
+            }
+        }
+
+        boolean mightContain(long value) {
+            if (bits == null) {
+                return true;
+            }
+            long[] hash = hash(value);
+            long combined = hash[0];
+            for (int i = 0; i < NUM_HASH_FUNCTIONS; i++) {
+                long offset = (combined & Long.MAX_VALUE) % numBits;
+                if ((bits.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                    return false;
+                }
+                combined += hash[1];
+            }
+            return true;
+        }
+
+        private static long[] hash(long value) {
+            byte[] data = new byte[8];
+            for (int i = 0; i < 8; i++) {
+                data[i] = (byte) (value >>> (i * 8));
+            }
+            return MurmurHash.hash128(data);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisIdWorker.BEGIN_TIMESTAMP;
+
+/**
+ * 雪花算法的本地ID生成器 生成ID时不需要访问Redis
+ * 仍然是 0 + 31位时间戳 + 32位 的格式，低32位为 1位本地模式标记 + 10位worker ID + 21位序列号
+ * 本地模式标记保证与Redis自增的序列号(一天不超过2^31个)不会重复
+ * 每秒每个节点最多生成2^21个ID，超过后等待下一秒
+ */
+public class SnowflakeIdGenerator {
+    public static final int WORKER_ID_BITS = 10;
+    public static final int MAX_WORKERS = 1 << WORKER_ID_BITS;
+    private static final int SEQUENCE_BITS = 21;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    private static final long LOCAL_MODE_FLAG = 1L << 31;
+    // 允许的最大时钟回拨(秒) 回拨不超过该值时继续使用上一秒的序列号 超过则拒绝生成ID
+    static final long MAX_BACKWARD_SECONDS = 2L;
+
+    private final WorkerIdLease lease;
+    // 高位是上一次生成ID的时间戳(秒) 低21位是该秒内已使用的序列号
+    private final AtomicLong state = new AtomicLong();
+
+    public SnowflakeIdGenerator(WorkerIdLease lease) {
+        this.lease = lease;
+    }
+
+    public long nextId() {
+        long workerId = lease.workerId();
+        while (true) {
+            long now = currentSecond();
+            long prev = state.get();
+            long lastSecond = prev >>> SEQUENCE_BITS;
+            long next;
+            if (now > lastSecond) {
+                next = now << SEQUENCE_BITS;
+            } else {
+                if (lastSecond - now > MAX_BACKWARD_SECONDS) {
+                    throw new IllegalStateException("时钟回拨" + (lastSecond - now) + "秒，拒绝生成ID");
+                }
+                // 同一秒内或者轻微的时钟回拨 继续使用上一秒的序列号
+                if ((prev & MAX_SEQUENCE) == MAX_SEQUENCE) {
+                    // 序列号用完 等待下一秒
+                    waitUntil(lastSecond + 1);
+                    continue;
+                }
+                next = prev + 1;
+            }
+            if (state.compareAndSet(prev, next)) {
+                return (next >>> SEQUENCE_BITS) << 32 | LOCAL_MODE_FLAG | workerId << SEQUENCE_BITS | (next & MAX_SEQUENCE);
+            }
+        }
+    }
+
+    private static long currentSecond() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - BEGIN_TIMESTAMP;
+    }
+
+    private static void waitUntil(long second) {
+        while (currentSecond() < second) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
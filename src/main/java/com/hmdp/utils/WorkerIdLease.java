@@ -0,0 +1,152 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从Redis中租用worker ID 保证同一时刻不会有两个节点使用同一个worker ID
+ * 租约带有TTL，需要定期续期；续期失败或者超过有效期后本节点不能再使用该worker ID
+ * 续期在租约自己的线程中执行 不与其他定时任务共用调度线程，避免被耗时的任务阻塞而导致租约过期
+ */
+@Slf4j
+public class WorkerIdLease {
+    private static final String KEY_PREFIX = "icr:worker:";
+    // 释放或者到期后worker ID仍然保留的时间(秒) 至少是一个时间戳单位(1秒)加上允许的时钟回拨
+    // 否则新的节点拿到同一个worker ID后 可能在同一秒内生成与本节点相同的ID
+    static final long RELEASE_HOLD_SECONDS = 1 + SnowflakeIdGenerator.MAX_BACKWARD_SECONDS;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renewWorker.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    // worker ID的个数
+    private final int maxWorkers;
+    // 租约有效期(秒)
+    private final long ttlSeconds;
+    // 当前节点的唯一标识 作为key的值
+    private final String token = UUID.fastUUID().toString(true);
+
+    private volatile int workerId = -1;
+    // 本地记录的租约到期时间(毫秒)
+    private volatile long expireAt;
+    // 续期线程
+    private ScheduledExecutorService renewExecutor;
+
+    public WorkerIdLease(StringRedisTemplate stringRedisTemplate, int maxWorkers, long ttlSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.maxWorkers = maxWorkers;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * 租用一个空闲的worker ID 从随机位置开始依次尝试SET NX
+     */
+    public synchronized void acquire() {
+        int start = ThreadLocalRandom.current().nextInt(maxWorkers);
+        for (int i = 0; i < maxWorkers; i++) {
+            int id = (start + i) % maxWorkers;
+            long now = System.currentTimeMillis();
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(KEY_PREFIX + id, token, ttlSeconds, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                expireAt = now + TimeUnit.SECONDS.toMillis(ttlSeconds);
+                workerId = id;
+                log.info("租用worker ID成功 workerId={}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的worker ID");
+    }
+
+    /**
+     * 启动续期线程 间隔应明显小于租约有效期
+     *
+     * @param intervalMillis 续期间隔(毫秒)
+     */
+    public synchronized void startRenewal(long intervalMillis) {
+        if (renewExecutor != null) {
+            return;
+        }
+        renewExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "worker-id-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        renewExecutor.scheduleAtFixedRate(this::scheduledRenew, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void scheduledRenew() {
+        // 已经释放租约 不能再重新租用
+        if (renewExecutor == null) {
+            return;
+        }
+        try {
+            renew();
+        } catch (Exception e) {
+            // 异常不能抛出 否则后续的续期不会再执行
+            log.error("worker ID租约续期失败", e);
+        }
+    }
+
+    /**
+     * 续期 租约已经不属于本节点时重新租用
+     */
+    public synchronized void renew() {
+        int id = workerId;
+        if (id < 0) {
+            acquire();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long result = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(KEY_PREFIX + id), token, String.valueOf(ttlSeconds));
+        if (result != null && result == 1) {
+            expireAt = now + TimeUnit.SECONDS.toMillis(ttlSeconds);
+            return;
+        }
+        log.warn("worker ID租约已失效 重新租用 workerId={}", id);
+        workerId = -1;
+        acquire();
+    }
+
+    /**
+     * 释放租约 不直接删除key 而是只保留RELEASE_HOLD_SECONDS秒 等本节点最后生成的ID所在的时间窗口过去后其他节点才能租用
+     */
+    public synchronized void release() {
+        if (renewExecutor != null) {
+            renewExecutor.shutdownNow();
+            renewExecutor = null;
+        }
+        int id = workerId;
+        if (id >= 0) {
+            workerId = -1;
+            stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(KEY_PREFIX + id), token, String.valueOf(RELEASE_HOLD_SECONDS));
+        }
+    }
+
+    /**
+     * 获取当前有效的worker ID
+     * 租约到期前RELEASE_HOLD_SECONDS秒就不再使用 原因与释放时相同
+     *
+     * @return
+     */
+    public int workerId() {
+        int id = workerId;
+        if (id < 0 || System.currentTimeMillis() >= expireAt - TimeUnit.SECONDS.toMillis(RELEASE_HOLD_SECONDS)) {
+            throw new IllegalStateException("worker ID租约无效");
+        }
+        return id;
+    }
+}
@@ -0,0 +1,10 @@
+-- 续期worker ID的租约
+local key = KEYS[1] -- worker ID的key 如icr:worker:1
+local token = ARGV[1] -- 当前节点的唯一标识
+local ttl = ARGV[2] -- 租约有效期(秒)
+
+-- 只有租约仍然属于当前节点时才续期
+if (redis.call('get', key) == token) then
+    return redis.call('expire', key, ttl)
+end
+return 0
@@ -5,26 +5,34 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 
 -- 2.key
+-- 库存分桶时由调用方通过KEYS传入用户所在分桶的两个key 它们使用相同的hash tag 在Redis集群中属于同一个slot
+-- 没有传入KEYS时使用不分桶的key
+local bucketed = #KEYS > 0
 -- 库存
 -- stockKey String类型 以优惠券作为key，以库存数值作为value
-local stockKey = "seckill:stock:" .. voucherId
+local stockKey = bucketed and KEYS[1] or ("seckill:stock:" .. voucherId)
 
 -- orderKey Set类型，以优惠券作为key，以购买过这个优惠券的用户ID的列表作为值
-local orderKey = "seckill:order:" .. voucherId
+local orderKey = bucketed and KEYS[2] or ("seckill:order:" .. voucherId)
 
 -- 3.业务
--- 3.1 判断库存是否充足
-if (tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 库存不足
-    return 1
-end
-
--- 3.2 判断用户是否已经下过单
+-- 3.1 判断用户是否已经下过单
 if (redis.call("sismember", orderKey, userId) == 1) then
     -- 重复下单
     return 2
 end
 
+-- 3.2 判断库存是否充足
+if (tonumber(redis.call('get', stockKey) or 0) <= 0) then
+    if (bucketed) then
+        -- 当前分桶没有库存 由调用方从其他分桶扣减库存 扣减成功后再记录下单用户
+        return 3
+    end
+    -- 库存不足
+    return 1
+end
+
 -- 3.3 扣库存 下单
 redis.call('incrby', stockKey, -1)
 redis.call('sadd', orderKey, userId)
+return 0
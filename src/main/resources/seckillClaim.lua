@@ -0,0 +1,10 @@
+-- 从其他分桶扣减库存成功后 在用户所在分桶记录下单用户
+-- 同一个用户的并发请求可能都扣减成功 只有一个能记录成功，其余的把扣减的库存归还到用户所在分桶 总库存不变
+-- KEYS[1] 用户所在分桶的库存key KEYS[2] 用户所在分桶的下单用户key
+-- ARGV[1] 用户ID
+if (redis.call('sadd', KEYS[2], ARGV[1]) == 1) then
+    return 0
+end
+-- 重复下单
+redis.call('incrby', KEYS[1], 1)
+return 2
@@ -0,0 +1,17 @@
+-- 下单信息没有交给写库线程时 回滚seckill.lua中的扣库存和下单记录
+-- 1.参数
+-- 优惠券ID
+local voucherId = ARGV[1]
+-- 用户ID
+local userId = ARGV[2]
+
+-- 2.key 库存分桶时传入用户所在分桶的key 库存可能是从其他分桶扣减的 统一归还到用户所在分桶 总库存不变
+local bucketed = #KEYS > 0
+local stockKey = bucketed and KEYS[1] or ("seckill:stock:" .. voucherId)
+local orderKey = bucketed and KEYS[2] or ("seckill:order:" .. voucherId)
+
+-- 3.业务 只有确实下过单时才归还库存 避免重复回滚
+if (redis.call('srem', orderKey, userId) == 1) then
+    redis.call('incrby', stockKey, 1)
+end
+return 0
@@ -0,0 +1,9 @@
+-- 用户所在分桶没有库存时 从其他分桶扣减一个库存
+-- 跨slot的key不能放在一个脚本中 扣减成功后由调用方执行seckillClaim.lua在用户所在分桶记录下单用户
+-- KEYS[1] 其他分桶的库存key
+if (tonumber(redis.call('get', KEYS[1]) or 0) <= 0) then
+    -- 该分桶也没有库存
+    return 1
+end
+redis.call('incrby', KEYS[1], -1)
+return 0
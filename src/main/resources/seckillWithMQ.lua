@@ -6,7 +6,7 @@ local userId = ARGV[2]
 -- 订单ID 由Java传入
 local orderId = ARGV[3]
 
--- 2.key
+-- 2.key 只处理不分桶的优惠券 分桶的优惠券由SeckillStockBuckets扣减库存后再写入消息队列
 -- 库存
 -- stockKey String类型 以优惠券作为key，以库存数值作为value
 local stockKey = "seckill:stock:" .. voucherId
@@ -16,7 +16,7 @@ local orderKey = "seckill:order:" .. voucherId
 
 -- 3.业务
 -- 3.1 判断库存是否充足
-if (tonumber(redis.call('get', stockKey)) <= 0) then
+if (tonumber(redis.call('get', stockKey) or 0) <= 0) then
     -- 库存不足
     return 1
 end
@@ -31,7 +31,7 @@ end
 -- 3.3 扣库存 下单
 redis.call('incrby', stockKey, -1)
 redis.call('sadd', orderKey, userId)
-redis.call('XADD', 'steam.orders', '*', 'userId', userId, 'voucherId', voucherId, "id", orderId)
+redis.call('XADD', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, "id", orderId)
 return 0
 
 
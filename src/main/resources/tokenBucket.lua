@@ -0,0 +1,34 @@
+-- 集群共享的令牌桶 按时间匀速生成令牌 一次可以申请多个令牌
+-- 1.参数
+-- KEYS[1] 令牌桶key Hash类型 tokens:剩余令牌数 ts:上次生成令牌的时间
+local key = KEYS[1]
+-- 每秒生成的令牌数
+local rate = tonumber(ARGV[1])
+-- 桶容量 即允许的突发请求数
+local capacity = tonumber(ARGV[2])
+-- 当前时间(毫秒) 由调用方传入
+local now = tonumber(ARGV[3])
+-- 申请的令牌数
+local requested = tonumber(ARGV[4])
+
+-- 2.根据上次生成令牌到现在的时间补充令牌 桶不存在时是满的
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if (tokens == nil) then
+    tokens = capacity
+    ts = now
+end
+-- 各节点时钟可能不一致 时间只向前推进
+if (now > ts) then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+
+-- 3.发放令牌 剩余令牌不足时发放全部整数个
+local granted = math.min(math.floor(tokens), requested)
+tokens = tokens - granted
+redis.call('hmset', key, 'tokens', tokens, 'ts', ts)
+-- 桶装满所需的时间之后没有访问时删除
+redis.call('pexpire', key, math.ceil(capacity * 1000 / rate) + 1000)
+return granted
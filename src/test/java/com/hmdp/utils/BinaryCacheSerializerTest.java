@@ -0,0 +1,163 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BinaryCacheSerializerTest {
+    private static final byte FORMAT_BINARY = (byte) 0xB1;
+    private static final byte FORMAT_LZ4 = (byte) 0xB2;
+
+    private final BinaryCacheSerializer serializer = new BinaryCacheSerializer(1024);
+
+    private static Shop shop(long id) {
+        Shop shop = new Shop();
+        shop.setId(id);
+        shop.setName("103茶餐厅" + id);
+        shop.setTypeId(1L);
+        shop.setImages("https://example.com/a.jpg,https://example.com/b.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123456789));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        return shop;
+    }
+
+    @Test
+    public void shopRoundTrip() {
+        Shop shop = shop(1);
+        byte[] bytes = serializer.serialize(shop);
+        assertEquals(FORMAT_BINARY, bytes[0]);
+        assertEquals(shop, serializer.deserialize(bytes, Shop.class));
+    }
+
+    @Test
+    public void shopWithNullFieldsRoundTrip() {
+        Shop shop = new Shop();
+        shop.setId(2L);
+        shop.setName("");
+        assertEquals(shop, serializer.deserialize(serializer.serialize(shop), Shop.class));
+    }
+
+    @Test
+    public void shopTypeRoundTrip() {
+        ShopType type = new ShopType();
+        type.setId(3L);
+        type.setName("美食");
+        type.setIcon("/types/ms.png");
+        type.setSort(1);
+        type.setCreateTime(LocalDateTime.of(2021, 12, 22, 20, 17, 47));
+        byte[] bytes = serializer.serialize(type);
+        assertEquals(FORMAT_BINARY, bytes[0]);
+        assertEquals(type, serializer.deserialize(bytes, ShopType.class));
+    }
+
+    @Test
+    public void userDTORoundTrip() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon(null);
+        byte[] bytes = serializer.serialize(user);
+        assertEquals(FORMAT_BINARY, bytes[0]);
+        assertEquals(user, serializer.deserialize(bytes, UserDTO.class));
+    }
+
+    @Test
+    public void listRoundTrip() {
+        List<ShopType> types = new ArrayList<>();
+        for (long i = 1; i <= 3; i++) {
+            ShopType type = new ShopType();
+            type.setId(i);
+            type.setName("类型" + i);
+            type.setSort((int) i);
+            types.add(type);
+        }
+        byte[] bytes = serializer.serialize(types);
+        assertEquals(FORMAT_BINARY, bytes[0]);
+        assertEquals(types, serializer.deserializeList(bytes, ShopType.class));
+    }
+
+    @Test
+    public void largeValueIsCompressedWithLz4() {
+        List<Shop> shops = new ArrayList<>();
+        for (long i = 0; i < 50; i++) {
+            shops.add(shop(i));
+        }
+        byte[] bytes = serializer.serialize(shops);
+        assertEquals(FORMAT_LZ4, bytes[0]);
+        assertEquals(shops, serializer.deserializeList(bytes, Shop.class));
+
+        BinaryCacheSerializer eager = new BinaryCacheSerializer(16);
+        Shop shop = shop(7);
+        byte[] compressed = eager.serialize(shop);
+        assertEquals(FORMAT_LZ4, compressed[0]);
+        assertEquals(shop, eager.deserialize(compressed, Shop.class));
+    }
+
+    @Test
+    public void readsLegacyJson() {
+        Shop shop = shop(8);
+        // 旧的JSON缓存中时间只精确到毫秒
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123000000));
+        byte[] json = JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8);
+        assertEquals(shop, serializer.deserialize(json, Shop.class));
+
+        List<Shop> shops = Collections.singletonList(shop);
+        byte[] jsonList = JSONUtil.toJsonStr(shops).getBytes(StandardCharsets.UTF_8);
+        assertEquals(shops, serializer.deserializeList(jsonList, Shop.class));
+    }
+
+    @Test
+    public void typeWithoutCodecFallsBackToJson() {
+        // 没有注册编解码器的类型仍然以JSON保存
+        Payload payload = new Payload();
+        payload.setValue("abc");
+        byte[] bytes = serializer.serialize(payload);
+        assertEquals('{', bytes[0]);
+        assertEquals("abc", serializer.deserialize(bytes, Payload.class).getValue());
+    }
+
+    @Test
+    public void nullRoundTrip() {
+        byte[] bytes = serializer.serialize(null);
+        assertNull(serializer.deserialize(bytes, Shop.class));
+        assertNull(serializer.deserializeList(bytes, Shop.class));
+        // 与逻辑过期的格式一起使用 前面有8字节的过期时间
+        byte[] withExpire = new byte[8 + bytes.length];
+        System.arraycopy(bytes, 0, withExpire, 8, bytes.length);
+        assertNull(serializer.deserialize(withExpire, 8, bytes.length, Shop.class));
+
+        JsonCacheSerializer json = new JsonCacheSerializer();
+        assertNull(json.deserialize(json.serialize(null), Shop.class));
+    }
+
+    public static class Payload {
+        private String value;
+
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static RingBuffer<long[]> newBuffer(int size) {
+        return new RingBuffer<>(size, () -> new long[1], RingBuffer.WaitStrategy.of("sleeping"));
+    }
+
+    private static boolean publish(RingBuffer<long[]> buffer, long value) {
+        return buffer.tryPublish(slot -> slot[0] = value);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizeNotPowerOfTwo() {
+        newBuffer(6);
+    }
+
+    @Test
+    public void fullBufferRejectsUntilConsumerReleasesSlots() throws Exception {
+        RingBuffer<long[]> buffer = newBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(publish(buffer, i));
+        }
+        // 没有消费者处理 第5个会覆盖第1个槽位
+        assertFalse(publish(buffer, 4));
+        assertEquals(4, buffer.backlog());
+
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> consumed = Collections.synchronizedList(new ArrayList<>());
+        buffer.start(1, 2, batch -> {
+            for (long[] slot : batch) {
+                consumed.add(slot[0]);
+            }
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, executor);
+        // 处理器还没有返回 槽位仍然被占用
+        Thread.sleep(50);
+        assertFalse(publish(buffer, 4));
+
+        release.countDown();
+        // 多绕几圈 单个消费者按发布顺序处理
+        for (long v = 4; v < 40; v++) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!publish(buffer, v)) {
+                assertTrue("生产者一直无法发布", System.currentTimeMillis() < deadline);
+                Thread.yield();
+            }
+        }
+        buffer.shutdown();
+        waitUntil(() -> consumed.size() == 40);
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i, consumed.get(i).longValue());
+        }
+    }
+
+    @Test
+    public void multiProducerMultiConsumerDeliversEachElementOnce() throws Exception {
+        int producers = 4;
+        int perProducer = 20000;
+        int total = producers * perProducer;
+        RingBuffer<long[]> buffer = newBuffer(64);
+        AtomicIntegerArray counts = new AtomicIntegerArray(total);
+        buffer.start(3, 16, batch -> {
+            for (long[] slot : batch) {
+                counts.incrementAndGet((int) slot[0]);
+            }
+        }, executor);
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int base = p * perProducer;
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < perProducer; i++) {
+                    while (!publish(buffer, base + i)) {
+                        Thread.yield();
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        waitUntil(() -> buffer.backlog() == 0);
+        for (int i = 0; i < total; i++) {
+            assertEquals("元素" + i + "处理的次数", 1, counts.get(i));
+        }
+    }
+
+    @Test
+    public void shutdownDrainsPublishedElementsAndRejectsNewOnes() throws Exception {
+        RingBuffer<long[]> buffer = newBuffer(128);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(publish(buffer, i));
+        }
+        List<Long> consumed = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService consumers = Executors.newFixedThreadPool(2);
+        buffer.start(2, 10, batch -> {
+            for (long[] slot : batch) {
+                consumed.add(slot[0]);
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, consumers);
+        buffer.shutdown();
+        assertFalse(publish(buffer, 100));
+        // 消费者处理完已经发布的数据后自行退出
+        consumers.shutdown();
+        assertTrue(consumers.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(100, consumed.size());
+        assertEquals(100, consumed.stream().distinct().count());
+    }
+
+    private static void waitUntil(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.call()) {
+            assertTrue("等待超时", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
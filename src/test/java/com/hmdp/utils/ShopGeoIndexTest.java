@@ -0,0 +1,102 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ShopGeoIndexTest {
+    private static final double X = 120.149192;
+    private static final double Y = 30.316078;
+
+    @Test
+    public void nearbyReturnsClosestShopsInOrder() {
+        ShopGeoIndex index = new ShopGeoIndex();
+        Random random = new Random(42);
+        Map<Long, double[]> shops = new HashMap<>();
+        for (long id = 1; id <= 2000; id++) {
+            // 分布在约±20公里的范围内 跨越多个网格
+            double x = X + (random.nextDouble() - 0.5) * 0.4;
+            double y = Y + (random.nextDouble() - 0.5) * 0.4;
+            shops.put(id, new double[]{x, y});
+            index.put(id, 1L, x, y);
+        }
+        double radius = 5000;
+        int limit = 50;
+        ShopGeoIndex.Nearby nearby = index.nearby(1L, X, Y, radius, limit);
+
+        // 与暴力计算的结果比较
+        List<long[]> expected = new ArrayList<>();
+        for (Map.Entry<Long, double[]> entry : shops.entrySet()) {
+            double d = ShopGeoIndex.distance(X, Y, entry.getValue()[0], entry.getValue()[1]);
+            if (d <= radius) {
+                expected.add(new long[]{entry.getKey(), Double.doubleToLongBits(d)});
+            }
+        }
+        expected.sort((a, b) -> {
+            int c = Double.compare(Double.longBitsToDouble(a[1]), Double.longBitsToDouble(b[1]));
+            return c != 0 ? c : Long.compare(a[0], b[0]);
+        });
+        assertTrue("测试数据中半径内的商铺应该超过limit", expected.size() > limit);
+        assertEquals(limit, nearby.size());
+        for (int i = 0; i < limit; i++) {
+            assertEquals(expected.get(i)[0], nearby.ids[i]);
+            assertEquals(Double.longBitsToDouble(expected.get(i)[1]), nearby.distances[i], 0);
+        }
+    }
+
+    @Test
+    public void equalDistancesAreOrderedByShopId() {
+        ShopGeoIndex index = new ShopGeoIndex();
+        // 同一个坐标上的多个商铺 插入顺序与ID顺序相反
+        for (long id = 10; id >= 1; id--) {
+            index.put(id, 1L, X + 0.001, Y);
+        }
+        index.put(100L, 1L, X, Y);
+        ShopGeoIndex.Nearby nearby = index.nearby(1L, X, Y, 1000, 5);
+        assertArrayEquals(new long[]{100, 1, 2, 3, 4}, nearby.ids);
+
+        // 从上一页最后一个商铺继续查询 距离相同的商铺不会重复也不会遗漏
+        ShopGeoIndex.Nearby next = index.nearby(1L, X, Y, 1000, 5, nearby.distances[4], nearby.ids[4]);
+        assertArrayEquals(new long[]{5, 6, 7, 8, 9}, next.ids);
+        ShopGeoIndex.Nearby last = index.nearby(1L, X, Y, 1000, 5, next.distances[4], next.ids[4]);
+        assertArrayEquals(new long[]{10}, last.ids);
+    }
+
+    @Test
+    public void shopsOutsideRadiusOrOfOtherTypesAreExcluded() {
+        ShopGeoIndex index = new ShopGeoIndex();
+        index.put(1L, 1L, X, Y + 0.005);
+        index.put(2L, 1L, X, Y + 0.05);
+        index.put(3L, 2L, X, Y);
+        assertArrayEquals(new long[]{1}, index.nearby(1L, X, Y, 1000, 10).ids);
+        assertEquals(0, index.nearby(3L, X, Y, 1000, 10).size());
+    }
+
+    @Test
+    public void changingTypeAndRemovingUpdateTheGrids() {
+        ShopGeoIndex index = new ShopGeoIndex();
+        index.put(1L, 1L, X, Y);
+        index.put(2L, 1L, X + 0.001, Y);
+        index.put(1L, 2L, X, Y);
+        assertArrayEquals(new long[]{2}, index.nearby(1L, X, Y, 1000, 10).ids);
+        assertArrayEquals(new long[]{1}, index.nearby(2L, X, Y, 1000, 10).ids);
+
+        index.remove(1L);
+        assertEquals(0, index.nearby(2L, X, Y, 1000, 10).size());
+    }
+
+    @Test
+    public void changesDuringReloadAreNotOverwritten() {
+        ShopGeoIndex index = new ShopGeoIndex();
+        index.put(1L, 1L, X, Y);
+        index.reload(() -> {
+            // 加载期间新增3 删除1 加载读到的是旧数据
+            index.put(3L, 1L, X + 0.001, Y);
+            index.remove(1L);
+            return Arrays.asList(new Object[]{1L, 1L, X, Y}, new Object[]{2L, 1L, X + 0.002, Y});
+        });
+        assertArrayEquals(new long[]{3, 2}, index.nearby(1L, X, Y, 1000, 10).ids);
+    }
+}
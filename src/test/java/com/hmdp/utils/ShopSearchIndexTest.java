@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ShopSearchIndexTest {
+
+    private static ShopSearchIndex index(int mergeThreshold) {
+        ShopSearchIndex index = new ShopSearchIndex(mergeThreshold);
+        List<Object[]> shops = new ArrayList<>();
+        shops.add(new Object[]{1L, "103茶餐厅", "金华路锦昌文华苑29号", 37, 4215});
+        shops.add(new Object[]{2L, "蔡馬洪涛烤肉·老北京铜锅涮羊肉", "华联街道京华路", 46, 2160});
+        shops.add(new Object[]{3L, "新白鹿餐厅(运河上街店)", "台州路2号运河上街购物中心F5", 47, 3035});
+        shops.add(new Object[]{4L, "Mamala(杭州远洋乐堤港店)", "远洋乐堤港商城2期1层B115号", 47, 12035});
+        shops.add(new Object[]{5L, "海底捞火锅", "茶餐厅旁边", 49, 18000});
+        index.replaceAll(shops);
+        return index;
+    }
+
+    @Test
+    public void matchesGramsOfEveryLength() {
+        ShopSearchIndex index = index(100);
+        // 一字、两字、三字片段直接查找倒排表
+        assertEquals(Arrays.asList(3L, 1L, 5L), index.search("餐", 0, 10));
+        assertEquals(Arrays.asList(3L, 1L, 5L), index.search("餐厅", 0, 10));
+        assertEquals(Arrays.asList(1L, 5L), index.search("茶餐厅", 0, 10));
+        // 超过三个字时求三字片段的交集
+        assertEquals(Collections.singletonList(2L), index.search("老北京铜锅", 0, 10));
+        // 不区分大小写
+        assertEquals(Collections.singletonList(4L), index.search("mamala", 0, 10));
+        assertTrue(index.search("不存在的店", 0, 10).isEmpty());
+    }
+
+    @Test
+    public void gramIntersectionWithoutContiguousMatchIsRejected() {
+        ShopSearchIndex index = new ShopSearchIndex(100);
+        // 包含abc和bcd两个三字片段 但不包含abcd
+        index.replaceAll(Collections.singletonList(new Object[]{1L, "abc-bcd", "", 0, 0}));
+        assertTrue(index.search("abcd", 0, 10).isEmpty());
+        assertEquals(Collections.singletonList(1L), index.search("abc", 0, 10));
+    }
+
+    @Test
+    public void nameMatchesRankBeforeAddressMatches() {
+        ShopSearchIndex index = index(100);
+        // 5号的评分和销量最高 但只有地址匹配
+        assertEquals(Arrays.asList(1L, 5L), index.search("茶餐厅", 0, 10));
+        assertEquals(Collections.singletonList(5L), index.search("茶餐厅", 1, 10));
+    }
+
+    @Test
+    public void multipleKeywordsMustAllMatch() {
+        ShopSearchIndex index = index(100);
+        assertEquals(Collections.singletonList(3L), index.search("餐厅 运河", 0, 10));
+        assertTrue(index.search("餐厅 烤肉", 0, 10).isEmpty());
+    }
+
+    @Test
+    public void removeAndUpdateAreVisibleToSearch() {
+        ShopSearchIndex index = index(100);
+        index.remove(3L);
+        assertEquals(Arrays.asList(1L, 5L), index.search("餐", 0, 10));
+
+        // 修改名称后旧的名称不再匹配
+        index.put(1L, "103冰室", "金华路锦昌文华苑29号", 37, 4215);
+        assertEquals(Collections.singletonList(5L), index.search("茶餐厅", 0, 10));
+        assertEquals(Collections.singletonList(1L), index.search("冰室", 0, 10));
+
+        index.put(6L, "茶餐厅", "", 50, 0);
+        assertEquals(Arrays.asList(6L, 5L), index.search("茶餐厅", 0, 10));
+        index.remove(6L);
+        assertEquals(Collections.singletonList(5L), index.search("茶餐厅", 0, 10));
+    }
+
+    @Test
+    public void resultsAreTheSameAfterMerge() {
+        // 阈值为1 第二次修改时合并到基础段
+        ShopSearchIndex index = index(1);
+        index.put(6L, "港式茶餐厅", "", 10, 0);
+        index.put(7L, "茶餐厅", "", 10, 0);
+        index.remove(6L);
+        index.put(8L, "茶餐厅", "", 10, 1);
+        assertEquals(Arrays.asList(1L, 8L, 7L, 5L), index.search("茶餐厅", 0, 10));
+    }
+
+    @Test
+    public void changesDuringReloadAreNotOverwritten() {
+        ShopSearchIndex index = index(100);
+        index.reload(() -> {
+            index.put(1L, "103冰室", "", 37, 4215);
+            index.remove(5L);
+            return Arrays.asList(new Object[]{1L, "103茶餐厅", "", 37, 4215}, new Object[]{5L, "海底捞火锅", "茶餐厅旁边", 49, 18000});
+        });
+        assertTrue(index.search("茶餐厅", 0, 10).isEmpty());
+        assertEquals(Collections.singletonList(1L), index.search("冰室", 0, 10));
+    }
+}
@@ -0,0 +1,80 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ShopSuggestIndexTest {
+
+    @Test
+    public void suggestsHottestNamesForPrefix() {
+        List<Object[]> shops = new ArrayList<>();
+        shops.add(new Object[]{"茶餐厅", 40, 100});
+        shops.add(new Object[]{"茶颜悦色", 45, 1000});
+        shops.add(new Object[]{"茶百道", 42, 500});
+        shops.add(new Object[]{"火锅", 50, 100000});
+        ShopSuggestIndex index = ShopSuggestIndex.build(shops, 2);
+        assertEquals(Arrays.asList("茶颜悦色", "茶百道"), index.suggest("茶"));
+        assertEquals(Collections.singletonList("茶餐厅"), index.suggest("茶餐"));
+        assertTrue(index.suggest("咖啡").isEmpty());
+        assertTrue(index.suggest(" ").isEmpty());
+    }
+
+    @Test
+    public void duplicateNamesKeepTheHottestAndIgnoreCase() {
+        List<Object[]> shops = new ArrayList<>();
+        shops.add(new Object[]{"Mamala", 40, 10});
+        shops.add(new Object[]{"MAMALA", 40, 1000});
+        shops.add(new Object[]{"mama厨房", 40, 100});
+        ShopSuggestIndex index = ShopSuggestIndex.build(shops, 5);
+        assertEquals(2, index.size());
+        assertEquals(Arrays.asList("MAMALA", "mama厨房"), index.suggest("MaMa"));
+    }
+
+    @Test
+    public void equalWeightsAreOrderedByName() {
+        List<Object[]> shops = new ArrayList<>();
+        shops.add(new Object[]{"ac", 1, 1});
+        shops.add(new Object[]{"ab", 1, 1});
+        shops.add(new Object[]{"ad", 1, 1});
+        assertEquals(Arrays.asList("ab", "ac"), ShopSuggestIndex.build(shops, 2).suggest("a"));
+    }
+
+    @Test
+    public void heavyAndLightNodesMatchBruteForce() {
+        // 足够多的名称 使短前缀成为预先计算的重节点 长前缀是查询时计算的轻节点
+        Random random = new Random(7);
+        String alphabet = "abcd";
+        List<Object[]> shops = new ArrayList<>();
+        Map<String, Long> weights = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder name = new StringBuilder();
+            int length = 1 + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                name.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            int score = random.nextInt(50);
+            int sold = random.nextInt(10000);
+            shops.add(new Object[]{name.toString(), score, sold});
+            long weight = (long) sold * Math.max(score, 1);
+            weights.merge(name.toString(), weight, Math::max);
+        }
+        int topK = 10;
+        ShopSuggestIndex index = ShopSuggestIndex.build(shops, topK);
+        for (String prefix : Arrays.asList("a", "b", "ab", "dc", "abc", "abca", "ddddd", "cccccc")) {
+            List<String> expected = new ArrayList<>();
+            for (String name : weights.keySet()) {
+                if (name.startsWith(prefix)) {
+                    expected.add(name);
+                }
+            }
+            expected.sort((a, b) -> {
+                int c = Long.compare(weights.get(b), weights.get(a));
+                return c != 0 ? c : a.compareTo(b);
+            });
+            assertEquals("前缀" + prefix, expected.subList(0, Math.min(topK, expected.size())), index.suggest(prefix));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Base64;
+import java.util.Collections;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_REVOKED_KEY;
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class SignedLoginTokensTest {
+    private StringRedisTemplate stringRedisTemplate;
+    private ZSetOperations<String, String> zSetOperations;
+    private SignedLoginTokens tokens;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        zSetOperations = mock(ZSetOperations.class);
+        when(stringRedisTemplate.opsForZSet()).thenReturn(zSetOperations);
+        when(zSetOperations.range(LOGIN_REVOKED_KEY, 0, -1)).thenReturn(Collections.emptySet());
+        tokens = newTokens("secret-a", 3600);
+    }
+
+    private SignedLoginTokens newTokens(String secret, long ttl) {
+        SignedLoginTokens tokens = new SignedLoginTokens();
+        ReflectionTestUtils.setField(tokens, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(tokens, "mode", "signed");
+        ReflectionTestUtils.setField(tokens, "secret", secret);
+        ReflectionTestUtils.setField(tokens, "ttl", ttl);
+        ReflectionTestUtils.invokeMethod(tokens, "init");
+        return tokens;
+    }
+
+    private static UserDTO user() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("/imgs/icons/kaka.jpg");
+        return user;
+    }
+
+    @Test
+    public void issuedTokenVerifiesWithoutRedis() {
+        String token = tokens.issue(user());
+        assertEquals(user(), tokens.verify(token));
+        // 没有撤销记录时不需要到Redis中确认
+        verify(zSetOperations, never()).score(anyString(), any());
+    }
+
+    @Test
+    public void tamperedPayloadIsRejected() {
+        String token = tokens.issue(user());
+        int dot = token.indexOf('.');
+        byte[] payload = Base64.getUrlDecoder().decode(token.substring(0, dot));
+        // 修改用户ID的最后一个字节
+        payload[1 + 8 + 8 + 7] ^= 1;
+        String tampered = Base64.getUrlEncoder().withoutPadding().encodeToString(payload) + token.substring(dot);
+        assertNull(tokens.verify(tampered));
+    }
+
+    @Test
+    public void tamperedSignatureIsRejected() {
+        String token = tokens.issue(user());
+        // 签名的第一个字符 最后一个字符中有不参与解码的填充位
+        int dot = token.indexOf('.');
+        char first = token.charAt(dot + 1);
+        String tampered = token.substring(0, dot + 1) + (first == 'A' ? 'B' : 'A') + token.substring(dot + 2);
+        assertNull(tokens.verify(tampered));
+        assertNull(tokens.verify(token.substring(0, dot)));
+        assertNull(tokens.verify("not-a-token.!!!"));
+    }
+
+    @Test
+    public void tokenSignedWithAnotherSecretIsRejected() {
+        String token = newTokens("secret-b", 3600).issue(user());
+        assertNull(tokens.verify(token));
+    }
+
+    @Test
+    public void expiredTokenIsRejected() {
+        String token = newTokens("secret-a", -1).issue(user());
+        assertNull(tokens.verify(token));
+    }
+
+    @Test
+    public void revokedTokenIsRejected() {
+        String token = tokens.issue(user());
+        String other = tokens.issue(user());
+        tokens.revoke(token);
+        verify(zSetOperations).add(eq(LOGIN_REVOKED_KEY), anyString(), anyDouble());
+        when(zSetOperations.score(eq(LOGIN_REVOKED_KEY), any())).thenReturn(1.0);
+        assertNull(tokens.verify(token));
+        // 布隆过滤器没有命中的token仍然有效 (误判时会到Redis中确认)
+        when(zSetOperations.score(eq(LOGIN_REVOKED_KEY), any())).thenReturn(null);
+        assertEquals(user(), tokens.verify(other));
+    }
+}
@@ -0,0 +1,116 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisIdWorker.BEGIN_TIMESTAMP;
+import static org.junit.Assert.*;
+
+public class SnowflakeIdGeneratorTest {
+    private static final int SEQUENCE_BITS = 21;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    private static final int WORKER_ID = 5;
+
+    /**
+     * 不访问Redis 直接设置已经租到的worker ID
+     */
+    private static WorkerIdLease lease() {
+        WorkerIdLease lease = new WorkerIdLease(null, SnowflakeIdGenerator.MAX_WORKERS, 30);
+        ReflectionTestUtils.setField(lease, "workerId", WORKER_ID);
+        ReflectionTestUtils.setField(lease, "expireAt", Long.MAX_VALUE);
+        return lease;
+    }
+
+    private static long currentSecond() {
+        return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - BEGIN_TIMESTAMP;
+    }
+
+    private static void setState(SnowflakeIdGenerator generator, long second, long sequence) {
+        AtomicLong state = (AtomicLong) ReflectionTestUtils.getField(generator, "state");
+        state.set(second << SEQUENCE_BITS | sequence);
+    }
+
+    @Test
+    public void idsStayMonotonicAcrossSequenceRollover() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(lease());
+        long second = currentSecond();
+        // 当前这一秒的序列号只剩最后几个
+        setState(generator, second, MAX_SEQUENCE - 3);
+        long prev = 0;
+        for (int i = 0; i < 10; i++) {
+            long id = generator.nextId();
+            assertTrue("ID必须递增", id > prev);
+            assertEquals(WORKER_ID, (id >>> SEQUENCE_BITS) & (SnowflakeIdGenerator.MAX_WORKERS - 1));
+            prev = id;
+        }
+        // 序列号用完后等到了下一秒
+        assertTrue(prev >>> 32 > second);
+        // 前3个用完了上一秒的序列号 后7个是下一秒的0到6
+        assertEquals(6, prev & MAX_SEQUENCE);
+    }
+
+    @Test
+    public void smallClockRollbackKeepsUsingTheLastSecond() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(lease());
+        // 上一次生成ID的时间比当前时间晚一秒 相当于时钟回拨了一秒
+        long last = currentSecond() + 1;
+        setState(generator, last, 100);
+        long id = generator.nextId();
+        assertEquals(last, id >>> 32);
+        assertEquals(101, id & MAX_SEQUENCE);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void largeClockRollbackIsRejected() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(lease());
+        setState(generator, currentSecond() + 10, 0);
+        generator.nextId();
+    }
+
+    @Test
+    public void concurrentIdsAreUniqueAndIncreasingPerThread() throws Exception {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(lease());
+        int threads = 4;
+        int perThread = 100000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    long[] ids = new long[perThread];
+                    for (int i = 0; i < perThread; i++) {
+                        ids[i] = generator.nextId();
+                    }
+                    return ids;
+                }));
+            }
+            Set<Long> all = new HashSet<>(threads * perThread * 2);
+            for (Future<long[]> future : futures) {
+                long[] ids = future.get(30, TimeUnit.SECONDS);
+                for (int i = 0; i < ids.length; i++) {
+                    if (i > 0) {
+                        assertTrue(ids[i] > ids[i - 1]);
+                    }
+                    assertTrue("ID重复", all.add(ids[i]));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void expiredLeaseIsRejected() {
+        WorkerIdLease lease = lease();
+        // 距离租约到期不足释放后的保留时间
+        ReflectionTestUtils.setField(lease, "expireAt", System.currentTimeMillis() + 1000);
+        new SnowflakeIdGenerator(lease).nextId();
+    }
+}